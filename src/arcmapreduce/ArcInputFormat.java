@@ -0,0 +1,167 @@
+package arcmapreduce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import util.ArcRecord;
+
+/**
+ * Input format for indexed ARC dumps (plain or compressed). Mappers get the
+ * records directly: the key is the id of the record in its dump, the value
+ * the parsed ArcRecord.
+ * 
+ * Splits are cut from the index built by ArcIndexBuilder, on record
+ * boundaries: a split holds consecutive records, and ends at the first
+ * record boundary at least getSplitSize bytes after its start (so a record
+ * is never split, and a single large record makes a split of its own).
+ * 
+ * The index of dump.arc (or dump.arc.gz) is dump.idx, in the same
+ * directory; it may be plain or compact. Input files whose name does not end
+ * with .arc or .arc.gz (indexes, sidecars) are ignored, and a dump without
+ * an index is an error.
+ * 
+ */
+public class ArcInputFormat extends FileInputFormat<LongWritable, ArcRecord> {
+
+	/** Configuration key of the target split size, in bytes. */
+	public static final String SPLIT_SIZE = "arc.split.size";
+	public static final String INDEX_EXTENSION = ".idx";
+
+	/**
+	 * Set the target size of the splits. By default, it is the block size of
+	 * each dump.
+	 * 
+	 * @param job
+	 * @param size
+	 *            in bytes
+	 */
+	public static void setSplitSize(Job job, long size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("size=" + size);
+		job.getConfiguration().setLong(SPLIT_SIZE, size);
+	}
+
+	/**
+	 * Get the target size of the splits of a dump.
+	 * 
+	 * @param conf
+	 * @param dump
+	 * @return
+	 */
+	static long getSplitSize(Configuration conf, FileStatus dump) {
+		return conf.getLong(SPLIT_SIZE, dump.getBlockSize());
+	}
+
+	/**
+	 * Is this file an ARC dump (by its name)?
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public static boolean isDump(Path path) {
+		String name = path.getName();
+		return name.endsWith(".arc") || name.endsWith(".arc.gz");
+	}
+
+	/**
+	 * Get the path of the index of a dump.
+	 * 
+	 * @param dump
+	 * @return
+	 */
+	public static Path getIndexPath(Path dump) {
+		String name = dump.getName();
+		if (name.endsWith(".gz"))
+			name = name.substring(0, name.length() - 3);
+		if (name.endsWith(".arc"))
+			name = name.substring(0, name.length() - 4);
+		return new Path(dump.getParent(), name + INDEX_EXTENSION);
+	}
+
+	@Override
+	protected List<FileStatus> listStatus(JobContext job) throws IOException {
+		List<FileStatus> dumps = new ArrayList<FileStatus>();
+		for (FileStatus file : super.listStatus(job))
+			if (isDump(file.getPath()))
+				dumps.add(file);
+		return dumps;
+	}
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path file) {
+		return true;
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		Configuration conf = job.getConfiguration();
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		for (FileStatus dump : listStatus(job)) {
+			Path path = dump.getPath();
+			FileSystem fs = path.getFileSystem(conf);
+			Path idx = getIndexPath(path);
+			if (!fs.exists(idx))
+				throw new IOException(String.format("No index for %s (%s): "
+						+ "build it with ArcIndexBuilder", path, idx));
+			long target = getSplitSize(conf, dump);
+			BlockLocation[] blocks = fs.getFileBlockLocations(dump, 0, dump
+					.getLen());
+			IndexOffsets offsets = IndexOffsets.open(fs, idx, 0);
+			try {
+				int n = offsets.getNumRecords();
+				if (n == 0)
+					continue;
+				int first = 0;
+				long start = offsets.next(), end = start;
+				for (int id = 0; id < n; id++) {
+					end = offsets.next(); // End of record id
+					if (end - start >= target || id == n - 1) {
+						splits.add(new ArcSplit(path, start, end - start,
+								hosts(blocks, start), first, id + 1 - first));
+						first = id + 1;
+						start = end;
+					}
+				}
+				if (end > dump.getLen())
+					throw new IOException(String.format("%s is truncated: "
+							+ "%d bytes, but its index ends at %d", path, dump
+							.getLen(), end));
+			} finally {
+				offsets.close();
+			}
+		}
+		return splits;
+	}
+
+	/**
+	 * Get the hosts of the block holding a given offset.
+	 */
+	private static String[] hosts(BlockLocation[] blocks, long offset)
+			throws IOException {
+		for (BlockLocation block : blocks)
+			if (offset >= block.getOffset()
+					&& offset < block.getOffset() + block.getLength())
+				return block.getHosts();
+		return new String[0];
+	}
+
+	@Override
+	public RecordReader<LongWritable, ArcRecord> createRecordReader(
+			InputSplit split, TaskAttemptContext context) {
+		return new ArcSplitReader();
+	}
+}
@@ -0,0 +1,64 @@
+package arcmapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * A split of an ARC dump: a byte range starting and ending on record
+ * boundaries, and the ids of the records it holds.
+ * 
+ */
+public class ArcSplit extends FileSplit {
+
+	private int firstId;
+	private int numRecords;
+
+	/** For deserialization. */
+	public ArcSplit() {
+		super(null, 0, 0, null);
+	}
+
+	public ArcSplit(Path file, long start, long length, String[] hosts,
+			int firstId, int numRecords) {
+		super(file, start, length, hosts);
+		this.firstId = firstId;
+		this.numRecords = numRecords;
+	}
+
+	/**
+	 * Get the id of the first record of the split.
+	 * 
+	 * @return
+	 */
+	public int getFirstId() {
+		return firstId;
+	}
+
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		super.write(out);
+		out.writeInt(firstId);
+		out.writeInt(numRecords);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		super.readFields(in);
+		firstId = in.readInt();
+		numRecords = in.readInt();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s records %d-%d", super.toString(), firstId,
+				firstId + numRecords - 1);
+	}
+}
@@ -0,0 +1,114 @@
+package arcmapreduce;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import util.ArcRecord;
+import util.GzipMember;
+
+/**
+ * Reads the records of an ArcSplit. The split is read sequentially, one
+ * record at a time: the size of each record comes from the index, which is
+ * streamed along (see IndexOffsets), so nothing is searched for in the dump.
+ * Records of compressed dumps are inflated one by one.
+ * 
+ * Each value is a new ArcRecord (its data is not shared with the next one),
+ * so mappers may keep them.
+ * 
+ */
+public class ArcSplitReader extends RecordReader<LongWritable, ArcRecord> {
+
+	private Path path;
+	private FSDataInputStream in;
+	private IndexOffsets offsets;
+	private boolean compressed;
+
+	private int firstId, endId, id;
+	private long pos;
+
+	private final LongWritable key = new LongWritable();
+	private ArcRecord value;
+
+	@Override
+	public void initialize(InputSplit genericSplit, TaskAttemptContext context)
+			throws IOException {
+		ArcSplit split = (ArcSplit) genericSplit;
+		Configuration conf = context.getConfiguration();
+		path = split.getPath();
+		FileSystem fs = path.getFileSystem(conf);
+		firstId = id = split.getFirstId();
+		endId = firstId + split.getNumRecords();
+		in = fs.open(path);
+		byte[] magic = new byte[2];
+		in.readFully(0, magic);
+		compressed = ((magic[0] & 0xff) << 8 | magic[1] & 0xff) == GzipMember.MAGIC;
+		offsets = IndexOffsets.open(fs, ArcInputFormat.getIndexPath(path),
+				firstId);
+		pos = offsets.next();
+		if (pos != split.getStart())
+			throw new IOException(String.format("The index of %s does not "
+					+ "match split %s", path, split));
+		in.seek(pos);
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException {
+		if (id >= endId) {
+			value = null;
+			return false;
+		}
+		long end = offsets.next();
+		if (end - pos > Integer.MAX_VALUE)
+			throw new IOException(String.format("Record %d of %s is too "
+					+ "large to be held in memory (%d bytes)", id, path, end
+					- pos));
+		byte[] stored = new byte[(int) (end - pos)];
+		in.readFully(stored);
+		pos = end;
+		ByteBuffer raw = ByteBuffer.wrap(stored);
+		if (compressed)
+			raw = GzipMember.inflate(raw);
+		try {
+			value = ArcRecord.parseArcRecord(raw);
+		} catch (ParseException e) {
+			throw new IOException(String.format("Malformed record %d of %s: "
+					+ "%s", id, path, e.getMessage()));
+		}
+		key.set(id++);
+		return true;
+	}
+
+	@Override
+	public LongWritable getCurrentKey() {
+		return key;
+	}
+
+	@Override
+	public ArcRecord getCurrentValue() {
+		return value;
+	}
+
+	@Override
+	public float getProgress() {
+		return endId == firstId ? 1 : (id - firstId)
+				/ (float) (endId - firstId);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (offsets != null)
+			offsets.close();
+		if (in != null)
+			in.close();
+	}
+}
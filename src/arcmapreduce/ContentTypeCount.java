@@ -0,0 +1,97 @@
+package arcmapreduce;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import util.ArcRecord;
+
+/**
+ * Example job over ARC dumps read with ArcInputFormat: counts the records
+ * and their bytes per content type. With -local, the job runs in the local
+ * job runner on the local file system, which is the way to test it.
+ * 
+ */
+public class ContentTypeCount {
+
+	public static class TypeMapper extends
+			Mapper<LongWritable, ArcRecord, Text, LongWritable> {
+		private final Text type = new Text();
+		private final LongWritable one = new LongWritable(1);
+		private final LongWritable bytes = new LongWritable();
+
+		@Override
+		protected void map(LongWritable id, ArcRecord record, Context context)
+				throws IOException, InterruptedException {
+			type.set(record.getContentType());
+			context.write(type, one);
+			type.set(record.getContentType() + " bytes");
+			bytes.set(record.getLength());
+			context.write(type, bytes);
+		}
+	}
+
+	public static class SumReducer extends
+			Reducer<Text, LongWritable, Text, LongWritable> {
+		private final LongWritable sum = new LongWritable();
+
+		@Override
+		protected void reduce(Text key, Iterable<LongWritable> values,
+				Context context) throws IOException, InterruptedException {
+			long total = 0;
+			for (LongWritable value : values)
+				total += value.get();
+			sum.set(total);
+			context.write(key, sum);
+		}
+	}
+
+	/**
+	 * Main program.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		Configuration conf = new Configuration();
+		long splitSize = 0;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-local")) {
+				conf.set("mapred.job.tracker", "local");
+				conf.set("fs.default.name", "file:///");
+			} else if (args[i].equals("-splitSize") && i + 1 < args.length)
+				splitSize = Long.parseLong(args[++i]);
+			else
+				break;
+		}
+		if (args.length - i < 2) {
+			System.err.format("Usage: java %s [-local] [-splitSize <bytes>] "
+					+ "<input>... <output>\n", ContentTypeCount.class
+					.getName());
+			return;
+		}
+
+		Job job = new Job(conf, "ARC content types");
+		job.setJarByClass(ContentTypeCount.class);
+		job.setInputFormatClass(ArcInputFormat.class);
+		if (splitSize > 0)
+			ArcInputFormat.setSplitSize(job, splitSize);
+		for (; i < args.length - 1; i++)
+			FileInputFormat.addInputPath(job, new Path(args[i]));
+		FileOutputFormat.setOutputPath(job, new Path(args[args.length - 1]));
+		job.setMapperClass(TypeMapper.class);
+		job.setCombinerClass(SumReducer.class);
+		job.setReducerClass(SumReducer.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(LongWritable.class);
+		System.exit(job.waitForCompletion(true) ? 0 : 1);
+	}
+}
@@ -0,0 +1,125 @@
+package arcmapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import util.ArcIndexReader;
+import util.CompactIndex;
+
+/**
+ * Sequential reader of the entries of an ARC index (record offsets, see
+ * ArcIndexBuilder) stored in a Hadoop file system, from a given entry on.
+ * 
+ * A plain index is streamed, so reading the offsets of a split costs one
+ * seek and a few sequential reads. A compact index is read by an
+ * ArcIndexReader, which needs a local file: unless the file system is the
+ * local one, the index is first copied to a temporary file.
+ * 
+ */
+class IndexOffsets {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final int numRecords;
+	private DataInputStream plain;
+	private ArcIndexReader compact;
+	private File copy; // local copy of a compact index
+	private int next;
+
+	private IndexOffsets(int numRecords, int from) {
+		this.numRecords = numRecords;
+		this.next = from;
+	}
+
+	/**
+	 * Open an index.
+	 * 
+	 * @param fs
+	 * @param idx
+	 * @param from
+	 *            first entry to read (the offset of record from)
+	 * @return
+	 * @throws IOException
+	 */
+	static IndexOffsets open(FileSystem fs, Path idx, int from)
+			throws IOException {
+		long size = fs.getFileStatus(idx).getLen();
+		FSDataInputStream in = fs.open(idx);
+		boolean streamed = false;
+		try {
+			if (size < 8 || in.readLong() != CompactIndex.MAGIC) {
+				if (size / 8 - 1 > Integer.MAX_VALUE)
+					throw new IOException("Too many records in " + idx);
+				IndexOffsets offsets = new IndexOffsets((int) Math.max(0,
+						size / 8 - 1), from);
+				in.seek(8L * from);
+				offsets.plain = new DataInputStream(new BufferedInputStream(
+						in, BUFFER_SIZE));
+				streamed = true;
+				return offsets;
+			}
+		} finally {
+			if (!streamed)
+				in.close();
+		}
+		File local;
+		File copy = null;
+		if (fs.getUri().getScheme().equals("file"))
+			local = new File(idx.toUri().getPath());
+		else {
+			copy = File.createTempFile("arc",
+					ArcInputFormat.INDEX_EXTENSION);
+			fs.copyToLocalFile(idx, new Path(copy.getPath()));
+			local = copy;
+		}
+		try {
+			ArcIndexReader reader = new ArcIndexReader(local.getPath());
+			IndexOffsets offsets = new IndexOffsets(reader.getNumRecords(), from);
+			offsets.compact = reader;
+			offsets.copy = copy;
+			return offsets;
+		} catch (IOException e) {
+			if (copy != null)
+				copy.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the number of records of the dump.
+	 * 
+	 * @return
+	 */
+	int getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * Read the next entry: the offset of the next record, which is also the
+	 * end of the previous one.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	long next() throws IOException {
+		if (next > numRecords)
+			throw new IndexOutOfBoundsException("No record " + next);
+		next++;
+		return plain != null ? plain.readLong() : compact
+				.getRecordOffset(next - 1);
+	}
+
+	void close() throws IOException {
+		if (plain != null)
+			plain.close();
+		// The mapping of a compact index is released by the garbage collector
+		if (copy != null)
+			copy.delete();
+	}
+}
@@ -6,18 +6,27 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -30,13 +39,49 @@ import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import edu.stanford.nlp.util.CoreMap;
 
+/**
+ * Word counts and stopwords of a dataset of HTML files.
+ * 
+ * An extraction keeps its own counts, so several extractions can run at once
+ * in the same JVM. The counts of each file are added to the counts of its
+ * worker thread as the file is processed, so memory depends on the vocabulary
+ * (once per thread), not on the number of files.
+ * 
+ * Words are counted in TermDictionary objects: each worker thread counts all
+ * its files in its own, without locking, and they are merged into one for the
+ * whole dataset once all the files are done. The words are cut
+ * either by CoreNLP, or by the faster WordTokenizer, which agrees with it on
+ * most words (see WordTokenizer.main).
+ * 
+ */
 public class HtmlWordExtraction {
 	
-	public static Set<String> DEFAULT_STOPWORDS = loadDefaultStopWords("default_stopwords.txt");
-	public static Set<String> stopwords = new HashSet<String>();
+	public static final Set<String> DEFAULT_STOPWORDS = Collections.unmodifiableSet(loadDefaultStopWords("default_stopwords.txt"));
 
-	public static Map<String, Integer> wordFrequency = new HashMap<String, Integer>(); // overall frequency
-		
+	private final int threads;
+	private final boolean fastTokenizer;
+	private final Set<String> stopwords = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final TermDictionary wordFrequency = new TermDictionary(); // overall frequency, guarded by itself
+
+	private static final ThreadLocal<WordTokenizer> TOKENIZER = new ThreadLocal<WordTokenizer>() {
+		@Override
+		protected WordTokenizer initialValue() {
+			return new WordTokenizer();
+		}
+	};
+
+	/**
+	 * Tokenizer pipeline of each worker thread: it is built once per thread
+	 * rather than once per file.
+	 */
+	private static final ThreadLocal<StanfordCoreNLP> PIPELINE = new ThreadLocal<StanfordCoreNLP>() {
+		@Override
+		protected StanfordCoreNLP initialValue() {
+			Properties props = new Properties();
+			props.put("annotators", "tokenize, ssplit");
+			return new StanfordCoreNLP(props);
+		}
+	};
 
 	private static Set<String> loadDefaultStopWords(String filename) {
 		Set<String> stopwords = new HashSet<String>();
@@ -57,102 +102,229 @@ public class HtmlWordExtraction {
 		return stopwords;
 	}
 
-	static Map<String, Integer> processFile(File input){
+	public HtmlWordExtraction() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
 
-		Map<String, Integer> wordFrequencyInFile = new HashMap<String, Integer>();		
-		
-		try {
+	/**
+	 * Constructor.
+	 * 
+	 * @param threads
+	 *            number of files processed at once
+	 */
+	public HtmlWordExtraction(int threads) {
+		this(threads, false);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param threads
+	 *            number of files processed at once
+	 * @param fastTokenizer
+	 *            whether to cut words with WordTokenizer rather than CoreNLP
+	 */
+	public HtmlWordExtraction(int threads, boolean fastTokenizer) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads < 1");
+		this.threads = threads;
+		this.fastTokenizer = fastTokenizer;
+	}
 
-			Document doc = Jsoup.parse(input, "UTF-8", "http://example.com/");
+	/**
+	 * Get the overall frequency of the words. Not to be used while
+	 * processDataset runs.
+	 * 
+	 * @return the dictionary of the words, with their counts
+	 */
+	public TermDictionary getTerms() {
+		return wordFrequency;
+	}
 
-			String text = doc.body().text().toLowerCase();
+	/**
+	 * Get the overall frequency of the words, as a map (a copy).
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getWordFrequency() {
+		synchronized (wordFrequency) {
+			Map<String, Long> map = new HashMap<String, Long>(2 * wordFrequency.size());
+			for (int id = 0; id < wordFrequency.size(); id++)
+				map.put(wordFrequency.getTerm(id), wordFrequency.getCount(id));
+			return map;
+		}
+	}
 
-		
-			// StanfordCoreNLP object			
-			Properties props = new Properties();
-			props.put("annotators", "tokenize, ssplit"); 
-			StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+	/**
+	 * Get the stopwords: the default stopwords and the frequent words.
+	 * 
+	 * @return a live view
+	 */
+	public Set<String> getStopwords() {
+		return Collections.unmodifiableSet(stopwords);
+	}
 
-			Annotation document = new Annotation(text);
-			pipeline.annotate(document);
+	/**
+	 * Get the words ordered by decreasing frequency.
+	 * 
+	 * @return
+	 */
+	public List<Map.Entry<String, Long>> getWordsByFrequency() {
+		List<Map.Entry<String, Long>> wordFrequencyAsList = new ArrayList<Map.Entry<String,Long>>(getWordFrequency().entrySet());
 
-			List<CoreMap> sentences = document.get(SentencesAnnotation.class);
+		// Order by frequency (DECREASING)
+		Collections.sort(wordFrequencyAsList, new Comparator<Map.Entry<String, Long>>() {
 
-			for (CoreMap sentence : sentences) {			
-				for (CoreLabel token : sentence.get(TokensAnnotation.class)) {
-					String word = token.get(TextAnnotation.class);					
+			@Override
+			public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		});
+		return wordFrequencyAsList;
+	}
 
-					if (Character.isLetter(word.charAt(0))) {
-						if(wordFrequencyInFile.containsKey(word))
-							wordFrequencyInFile.put(word, wordFrequencyInFile.get(word) + 1);
-						else
-							wordFrequencyInFile.put(word, 1);					
-					}						
-				}
-			}		
-			
+	/**
+	 * Count the words of a file.
+	 * 
+	 * @param input
+	 * @param wordFrequencyInFile
+	 *            where to count them
+	 * @param fastTokenizer
+	 *            whether to cut words with WordTokenizer rather than CoreNLP
+	 */
+	static void processFile(File input, TermDictionary wordFrequencyInFile, boolean fastTokenizer){
+
+		try {
+			String text = getText(input);
+			if (fastTokenizer)
+				countWords(text, wordFrequencyInFile, TOKENIZER.get());
+			else
+				countWords(text, wordFrequencyInFile);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		
-		return wordFrequencyInFile;
 	}
 
-	public static void processDataset(File folder, int frequencyThreshold){
-		
-		List<Map<String, Integer>> allFiles = new ArrayList<Map<String,Integer>>();
-		
-		File[] files = folder.listFiles();
-		
-		for(int i=0;i<files.length;i++)			
-			allFiles.add(processFile(files[i]));
-		
-		
-		for (int i = 0; i < allFiles.size(); i++) {
-			
-			Map<String, Integer> crt = allFiles.get(i);
-			
-			Iterator<Map.Entry<String, Integer>> it = crt.entrySet().iterator();
+	/**
+	 * Get the text of an HTML file, in lower case.
+	 * 
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	static String getText(File input) throws IOException {
+		Document doc = Jsoup.parse(input, "UTF-8", "http://example.com/");
 
-			while (it.hasNext()) {
-				Map.Entry<String, Integer> crtEntry = it.next();
+		return doc.body().text().toLowerCase();
+	}
 
-				Integer value = wordFrequency.get(crtEntry.getKey());
+	/**
+	 * Count the words of a text (the tokens that start with a letter), cut by
+	 * CoreNLP.
+	 * 
+	 * @param text
+	 * @param wordFrequencyInText
+	 */
+	static void countWords(String text, TermDictionary wordFrequencyInText) {
+		Annotation document = new Annotation(text);
+		PIPELINE.get().annotate(document);
 
-				if (value != null) {
-					wordFrequency.put(crtEntry.getKey(), value + crtEntry.getValue());
-				} else
-					wordFrequency.put(crtEntry.getKey(), crtEntry.getValue());
-			}
+		List<CoreMap> sentences = document.get(SentencesAnnotation.class);
 
+		for (CoreMap sentence : sentences) {			
+			for (CoreLabel token : sentence.get(TokensAnnotation.class)) {
+				String word = token.get(TextAnnotation.class);					
+
+				if (Character.isLetter(word.charAt(0)))
+					wordFrequencyInText.add(word);
+			}
 		}		
-		
-		// select stopwords
-		Iterator<Map.Entry<String, Integer>> it = wordFrequency.entrySet().iterator();		
+	}
 
-		List<Map.Entry<String, Integer>> wordFrequencyAsList = new ArrayList<Map.Entry<String,Integer>>();
-		
-		while(it.hasNext()){
-			Map.Entry<String, Integer> crtEntry = it.next();
-			
-			if(crtEntry.getValue() > frequencyThreshold)
-				stopwords.add(crtEntry.getKey());
-			
-			wordFrequencyAsList.add(crtEntry);	
-		}	
-				
-		// Order by frequency (DECREASING)
-		Collections.sort(wordFrequencyAsList, new Comparator<Map.Entry<String, Integer>>() {
+	/**
+	 * Same as countWords(String, TermDictionary), with words cut by a
+	 * WordTokenizer.
+	 * 
+	 * @param text
+	 * @param wordFrequencyInText
+	 * @param tokenizer
+	 */
+	static void countWords(String text, final TermDictionary wordFrequencyInText, WordTokenizer tokenizer) {
+		tokenizer.tokenize(text, (buf, offset, length) -> {
+			if (Character.isLetter(buf[offset]))
+				wordFrequencyInText.add(buf, offset, length, 1);
+		});
+	}
 
+	/**
+	 * Count the words of the files of a folder, and select the stopwords. The
+	 * counts add up over calls.
+	 * 
+	 * @param folder
+	 * @param frequencyThreshold
+	 *            words more frequent than this are stopwords
+	 * @throws IOException
+	 *             if the folder cannot be listed
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted: the counts of this call are
+	 *             dropped, and no stopwords are selected
+	 */
+	public void processDataset(File folder, int frequencyThreshold) throws IOException {
+		
+		// each file is counted in the dictionary of its worker thread, and at
+		// most two files per thread are queued
+		final List<TermDictionary> workerWords = new ArrayList<TermDictionary>();
+		final ThreadLocal<TermDictionary> words = new ThreadLocal<TermDictionary>() {
 			@Override
-			public int compare(Entry<String, Integer> o1, Entry<String, Integer> o2) {
-				return o2.getValue().compareTo(o1.getValue());
+			protected TermDictionary initialValue() {
+				TermDictionary d = new TermDictionary();
+				synchronized (workerWords) {
+					workerWords.add(d);
+				}
+				return d;
 			}
-		});
+		};
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CompletionService<Void> done = new ExecutorCompletionService<Void>(pool);
+		int pending = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder.toPath())) {
+			for (final Path file : files) {
+				if (pending == 2 * threads) {
+					done.take().get();
+					pending--;
+				}
+				done.submit(() -> {
+					processFile(file.toFile(), words.get(), fastTokenizer);
+					return null;
+				});
+				pending++;
+			}
+			for (; pending > 0; pending--)
+				done.take().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while counting "
+					+ folder);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// the workers are done: merge their counts, then select stopwords
+		synchronized (wordFrequency) {
+			synchronized (workerWords) {
+				for (TermDictionary d : workerWords)
+					wordFrequency.addAll(d);
+			}
+
+			for (int id = 0; id < wordFrequency.size(); id++)
+				if (wordFrequency.getCount(id) > frequencyThreshold)
+					stopwords.add(wordFrequency.getTerm(id));
+		}
 
 		stopwords.addAll(DEFAULT_STOPWORDS);
-	//	System.out.println(wordFrequencyAsList);
 	}
 	
 	
@@ -160,16 +332,19 @@ public class HtmlWordExtraction {
 	/**
 	 * @param args
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 
+		// -fast: cut words with WordTokenizer
+		boolean fast = args.length > 0 && args[0].equals("-fast");
 		File folder = new File("karacrawl");
 		
-		processDataset(folder, 10);
+		HtmlWordExtraction extraction = new HtmlWordExtraction(Runtime.getRuntime().availableProcessors(), fast);
+		extraction.processDataset(folder, 10);
 		
-		System.out.println(wordFrequency);
+		System.out.println(extraction.getWordFrequency());
 		
-		for (String st : stopwords)
-			wordFrequency.remove(st);
+		Map<String, Long> wordFrequency = extraction.getWordFrequency();
+		wordFrequency.keySet().removeAll(extraction.getStopwords());
 		
 		System.out.println(wordFrequency);
 	}
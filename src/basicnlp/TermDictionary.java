@@ -0,0 +1,329 @@
+package basicnlp;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary of terms, with a count per term. Terms get dense ids (0, 1, 2,
+ * ... in the order they are first added), and counts are kept in a long[]
+ * indexed by id, so counting a term that is already known allocates nothing.
+ * 
+ * The characters of the terms are stored end to end in one char[]. Lookup is
+ * by CharSequence or by a range of a char[], in an open addressing table of
+ * term ids (linear probing, at most half full), so no String is needed to
+ * look a term up.
+ * 
+ * Not thread-safe.
+ * 
+ */
+public class TermDictionary {
+
+	private static final int EMPTY = -1;
+	private static final int DEFAULT_EXPECTED_TERMS = 16;
+
+	private char[] chars; // the terms, end to end
+	private int length; // used part of chars
+	private int[] ends; // end of each term in chars; it starts at the end of the previous one
+	private int[] hashes; // hash of each term
+	private long[] counts; // count of each term
+	private int size;
+	private long totalCount;
+	private int[] table; // term ids, or EMPTY
+	private int mask;
+
+	public TermDictionary() {
+		this(DEFAULT_EXPECTED_TERMS);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param expectedTerms
+	 *            number of terms expected: the dictionary grows past it if
+	 *            needed
+	 */
+	public TermDictionary(int expectedTerms) {
+		int terms = Math.max(expectedTerms, 1);
+		chars = new char[8 * terms];
+		ends = new int[terms];
+		hashes = new int[terms];
+		counts = new long[terms];
+		table = new int[Integer.highestOneBit(2 * terms - 1) << 1];
+		Arrays.fill(table, EMPTY);
+		mask = table.length - 1;
+	}
+
+	/**
+	 * Get the number of terms.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the sum of the counts of all terms.
+	 * 
+	 * @return
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Get the count of a term.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public long getCount(int id) {
+		checkId(id);
+		return counts[id];
+	}
+
+	/**
+	 * Get a term as a String (allocates it).
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public String getTerm(int id) {
+		checkId(id);
+		int start = id == 0 ? 0 : ends[id - 1];
+		return new String(chars, start, ends[id] - start);
+	}
+
+	/**
+	 * Get the id of a term.
+	 * 
+	 * @param term
+	 * @return the id, or -1 if the term is unknown
+	 */
+	public int find(CharSequence term) {
+		int slot = lookup(hash(term), term);
+		return slot >= 0 ? table[slot] : -1;
+	}
+
+	/**
+	 * Get the id of the term held in buf[offset, offset + length).
+	 * 
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 * @return the id, or -1 if the term is unknown
+	 */
+	public int find(char[] buf, int offset, int length) {
+		int slot = lookup(hash(buf, offset, length), buf, offset, length);
+		return slot >= 0 ? table[slot] : -1;
+	}
+
+	/**
+	 * Count one occurrence of a term, adding it if it is unknown.
+	 * 
+	 * @param term
+	 * @return the id of the term
+	 */
+	public int add(CharSequence term) {
+		return add(term, 1);
+	}
+
+	/**
+	 * Count occurrences of a term, adding it if it is unknown.
+	 * 
+	 * @param term
+	 * @param count
+	 * @return the id of the term
+	 */
+	public int add(CharSequence term, long count) {
+		int h = hash(term);
+		int slot = lookup(h, term);
+		int id;
+		if (slot >= 0)
+			id = table[slot];
+		else {
+			int n = term.length();
+			id = newTerm(~slot, h, n);
+			for (int i = 0, start = length - n; i < n; i++)
+				chars[start + i] = term.charAt(i);
+		}
+		counts[id] += count;
+		totalCount += count;
+		return id;
+	}
+
+	/**
+	 * Count occurrences of the term held in buf[offset, offset + length),
+	 * adding it if it is unknown.
+	 * 
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 * @param count
+	 * @return the id of the term
+	 */
+	public int add(char[] buf, int offset, int length, long count) {
+		return add(hash(buf, offset, length), buf, offset, length, count);
+	}
+
+	/**
+	 * Add the counts of another dictionary to this one.
+	 * 
+	 * @param other
+	 */
+	public void addAll(TermDictionary other) {
+		for (int id = 0, start = 0; id < other.size; start = other.ends[id++])
+			add(other.hashes[id], other.chars, start, other.ends[id] - start,
+					other.counts[id]);
+	}
+
+	/**
+	 * Remove all terms. The memory is kept for reuse.
+	 */
+	public void clear() {
+		Arrays.fill(table, EMPTY);
+		Arrays.fill(counts, 0, size, 0);
+		length = 0;
+		size = 0;
+		totalCount = 0;
+	}
+
+	private int add(int h, char[] buf, int offset, int length, long count) {
+		int slot = lookup(h, buf, offset, length);
+		int id;
+		if (slot >= 0)
+			id = table[slot];
+		else {
+			id = newTerm(~slot, h, length);
+			System.arraycopy(buf, offset, chars, this.length - length, length);
+		}
+		counts[id] += count;
+		totalCount += count;
+		return id;
+	}
+
+	/**
+	 * Find the slot of a term.
+	 * 
+	 * @return the slot holding the term, or ~(the free slot where it goes)
+	 */
+	private int lookup(int h, CharSequence term) {
+		int n = term.length();
+		for (int slot = h & mask;; slot = (slot + 1) & mask) {
+			int id = table[slot];
+			if (id == EMPTY)
+				return ~slot;
+			if (hashes[id] != h)
+				continue;
+			int start = id == 0 ? 0 : ends[id - 1];
+			if (ends[id] - start != n)
+				continue;
+			int i = 0;
+			while (i < n && chars[start + i] == term.charAt(i))
+				i++;
+			if (i == n)
+				return slot;
+		}
+	}
+
+	/** Same as lookup(int, CharSequence), for a range of a char[]. */
+	private int lookup(int h, char[] buf, int offset, int length) {
+		for (int slot = h & mask;; slot = (slot + 1) & mask) {
+			int id = table[slot];
+			if (id == EMPTY)
+				return ~slot;
+			if (hashes[id] != h)
+				continue;
+			int start = id == 0 ? 0 : ends[id - 1];
+			if (ends[id] - start != length)
+				continue;
+			int i = 0;
+			while (i < length && chars[start + i] == buf[offset + i])
+				i++;
+			if (i == length)
+				return slot;
+		}
+	}
+
+	/**
+	 * Add a term of n chars in a free slot, and make room for its chars at
+	 * the end of chars (the caller copies them).
+	 * 
+	 * @return its id
+	 */
+	private int newTerm(int slot, int h, int n) {
+		if (length + n > chars.length) {
+			long capacity = Math.max(2L * chars.length, (long) length + n);
+			if (capacity > Integer.MAX_VALUE - 8)
+				capacity = Integer.MAX_VALUE - 8;
+			if (capacity < (long) length + n)
+				throw new IllegalStateException("Too many characters");
+			chars = Arrays.copyOf(chars, (int) capacity);
+		}
+		if (size == ends.length) {
+			ends = Arrays.copyOf(ends, 2 * size);
+			hashes = Arrays.copyOf(hashes, 2 * size);
+			counts = Arrays.copyOf(counts, 2 * size);
+		}
+		int id = size++;
+		length += n;
+		ends[id] = length;
+		hashes[id] = h;
+		table[slot] = id;
+		if (2 * size > table.length)
+			rehash();
+		return id;
+	}
+
+	/** Double the table. */
+	private void rehash() {
+		table = new int[2 * table.length];
+		Arrays.fill(table, EMPTY);
+		mask = table.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hashes[id] & mask;
+			while (table[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			table[slot] = id;
+		}
+	}
+
+	private void checkId(int id) {
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException("Term id: " + id);
+	}
+
+	/**
+	 * Hash of a term (FNV-1a followed by a bit mixer, so that the low bits
+	 * can index the table).
+	 * 
+	 * @param term
+	 * @return
+	 */
+	static int hash(CharSequence term) {
+		int h = 0x811c9dc5;
+		for (int i = 0, n = term.length(); i < n; i++) {
+			h ^= term.charAt(i);
+			h *= 0x01000193;
+		}
+		return mix(h);
+	}
+
+	/** Same as hash(CharSequence), for a range of a char[]. */
+	static int hash(char[] buf, int offset, int length) {
+		int h = 0x811c9dc5;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			h ^= buf[i];
+			h *= 0x01000193;
+		}
+		return mix(h);
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
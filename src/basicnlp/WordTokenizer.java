@@ -0,0 +1,498 @@
+package basicnlp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Word tokenizer for counting words: a faster alternative to the CoreNLP
+ * tokenizer in HtmlWordExtraction, that cuts words close to the way CoreNLP
+ * (PTB) does, but does no sentence splitting and skips punctuation and
+ * symbols.
+ * 
+ * A word is a run of letters, digits, combining marks and underscores (the
+ * letter, number and connector classes of the Unicode word break rules),
+ * which may also hold:
+ * <ul>
+ * <li>hyphens between letters or digits (e-mail, well-known);</li>
+ * <li>periods, commas and colons between digits, in words that start with a
+ * digit (3.14, 1,000, 12:30, but v1 .2);</li>
+ * <li>periods after single letters (u.s., e.g.), and after a few known
+ * abbreviations (mr., dr., inc.);</li>
+ * <li>apostrophes between letters (o'neil), except for English clitics, which
+ * are split off as in PTB: don't is do n't, it's is it 's (and cannot is
+ * can not).</li>
+ * </ul>
+ * URLs and email addresses are single words. Tags such as &lt;string&gt; are
+ * skipped, as CoreNLP makes tokens of them that are not words.
+ * 
+ * There is no allocation per word: words are passed to a Handler as ranges of
+ * a char[].
+ * 
+ * main() compares the words counted with both tokenizers on a set of files,
+ * and checks the rules and the agreement with CoreNLP (option -check).
+ * 
+ */
+public class WordTokenizer {
+
+	/** Receives the words of a text. */
+	public interface Handler {
+		/**
+		 * A word, in buf[offset, offset + length). The buffer may be reused
+		 * once the call returns.
+		 * 
+		 * @param buf
+		 * @param offset
+		 * @param length
+		 */
+		void word(char[] buf, int offset, int length);
+	}
+
+	private static final String[] ABBREVIATIONS = { "mr", "mrs", "ms", "dr",
+			"prof", "st", "jr", "sr", "mt", "ft", "gen", "sen", "rep", "gov",
+			"lt", "col", "capt", "sgt", "rev", "hon", "inc", "ltd", "co",
+			"corp", "bros", "vs", "etc", "jan", "feb", "mar", "apr", "jun",
+			"jul", "aug", "sep", "sept", "oct", "nov", "dec" };
+	private static final int MAX_ABBREVIATION_LENGTH = 4;
+	private static final TermDictionary ABBREVIATION_TERMS = new TermDictionary(
+			2 * ABBREVIATIONS.length);
+	static {
+		for (String a : ABBREVIATIONS) {
+			ABBREVIATION_TERMS.add(a);
+			ABBREVIATION_TERMS.add(Character.toUpperCase(a.charAt(0))
+					+ a.substring(1));
+		}
+	}
+
+	private char[] buffer = new char[1 << 12];
+
+	/**
+	 * Split a text into words. The text is copied into a buffer kept by the
+	 * tokenizer, so a tokenizer is not to be shared between threads.
+	 * 
+	 * @param text
+	 * @param handler
+	 */
+	public void tokenize(CharSequence text, Handler handler) {
+		int n = text.length();
+		if (n > buffer.length)
+			buffer = new char[Math.max(n, 2 * buffer.length)];
+		if (text instanceof String)
+			((String) text).getChars(0, n, buffer, 0);
+		else
+			for (int i = 0; i < n; i++)
+				buffer[i] = text.charAt(i);
+		tokenize(buffer, 0, n, handler);
+	}
+
+	/**
+	 * Split a text held in text[offset, offset + length) into words.
+	 * 
+	 * @param text
+	 * @param offset
+	 * @param length
+	 * @param handler
+	 */
+	public static void tokenize(char[] text, int offset, int length,
+			Handler handler) {
+		int end = offset + length;
+		int i = offset;
+		while (i < end)
+			if (isWordChar(text, i, end))
+				i = word(text, i, end, handler);
+			else if (text[i] == '<')
+				i = skipTag(text, i, end);
+			else
+				i++;
+	}
+
+	/**
+	 * Cut the word that starts at s, and pass it on.
+	 * 
+	 * @return where the word ends
+	 */
+	private static int word(char[] t, int s, int end, Handler handler) {
+		int j = acronym(t, s, end);
+		if (j > s) {
+			handler.word(t, s, j - s);
+			return j;
+		}
+		j = skipRun(t, s, end);
+		while (j < end) {
+			char c = t[j];
+			if (c == '-' && j + 1 < end && isWordChar(t, j + 1, end))
+				j = skipRun(t, j + 1, end);
+			else if ((c == '.' || c == ',' || c == ':') && isDigit(t[s])
+					&& isDigit(t[j - 1]) && j + 1 < end && isDigit(t[j + 1]))
+				j = skipRun(t, j + 1, end);
+			else if (c == '@' && j + 1 < end && isWordChar(t, j + 1, end)) {
+				j = skipDomain(t, j + 1, end);
+				break;
+			} else if (c == ':' && j + 2 < end && t[j + 1] == '/'
+					&& t[j + 2] == '/' && isLetters(t, s, j)) {
+				j = skipUrl(t, j, end);
+				break;
+			} else if (c == '.' && j - s == 3 && t[s] == 'w' && t[s + 1] == 'w'
+					&& t[s + 2] == 'w' && j + 1 < end
+					&& isWordChar(t, j + 1, end)) {
+				j = skipUrl(t, j, end);
+				break;
+			} else if (isApostrophe(c) && j + 1 < end
+					&& Character.isLetter(t[j + 1])) {
+				int k = skipRun(t, j + 1, end);
+				if (k - j == 2 && (t[j + 1] == 't' || t[j + 1] == 'T')
+						&& j - 1 > s && (t[j - 1] == 'n' || t[j - 1] == 'N')
+						&& ends(t, k, end)) {
+					// n't
+					handler.word(t, s, j - 1 - s);
+					handler.word(t, j - 1, k - j + 1);
+					return k;
+				}
+				if (isClitic(t, j + 1, k) && ends(t, k, end)) {
+					handler.word(t, s, j - s);
+					handler.word(t, j, k - j);
+					return k;
+				}
+				j = k;
+			} else
+				break;
+		}
+		if (j < end && t[j] == '.' && j - s <= MAX_ABBREVIATION_LENGTH
+				&& ABBREVIATION_TERMS.find(t, s, j - s) >= 0)
+			j++;
+		else if (j - s == CANNOT.length() && regionMatches(t, s, CANNOT)) {
+			handler.word(t, s, 3);
+			handler.word(t, s + 3, 3);
+			return j;
+		}
+		handler.word(t, s, j - s);
+		return j;
+	}
+
+	private static final String CANNOT = "cannot";
+
+	/** Does t hold s at i, ignoring case? */
+	private static boolean regionMatches(char[] t, int i, String s) {
+		for (int k = 0; k < s.length(); k++)
+			if (Character.toLowerCase(t[i + k]) != s.charAt(k))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Skip a tag that starts at i (a '<', then an optional '/', a word and a
+	 * '>').
+	 * 
+	 * @return where it ends, or i + 1 if there is none
+	 */
+	private static int skipTag(char[] t, int i, int end) {
+		int k = i + 1;
+		if (k < end && t[k] == '/')
+			k++;
+		if (k == end || !isWordChar(t, k, end))
+			return i + 1;
+		k = skipRun(t, k, end);
+		return k < end && t[k] == '>' ? k + 1 : i + 1;
+	}
+
+	/**
+	 * Find the end of an acronym that starts at s: single letters, each
+	 * followed by a period (u.s.), or with a last one without (a.b.c).
+	 * 
+	 * @return where it ends, or s if there is none
+	 */
+	private static int acronym(char[] t, int s, int end) {
+		int k = s;
+		int letters = 0;
+		while (k + 1 < end && Character.isLetter(t[k]) && t[k + 1] == '.'
+				&& (k == s || t[k - 1] == '.')) {
+			k += 2;
+			letters++;
+		}
+		if (letters == 0)
+			return s;
+		if (k < end && isWordChar(t, k, end)) {
+			if (Character.isLetter(t[k]) && ends(t, k + 1, end))
+				return k + 1;
+			return s;
+		}
+		return letters >= 2 ? k : s;
+	}
+
+	/** Is there no word char at i? */
+	private static boolean ends(char[] t, int i, int end) {
+		return i == end || !isWordChar(t, i, end);
+	}
+
+	/** Is t[start, end) a clitic (s, re, ve, ll, d or m, after a quote)? */
+	private static boolean isClitic(char[] t, int start, int end) {
+		char a = Character.toLowerCase(t[start]);
+		switch (end - start) {
+		case 1:
+			return a == 's' || a == 'd' || a == 'm';
+		case 2:
+			char b = Character.toLowerCase(t[start + 1]);
+			return a == 'r' && b == 'e' || a == 'v' && b == 'e' || a == 'l'
+					&& b == 'l';
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isApostrophe(char c) {
+		return c == '\'' || c == '\u2019';
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9' || c > 0x7f && Character.isDigit(c);
+	}
+
+	private static boolean isLetters(char[] t, int start, int end) {
+		for (int i = start; i < end; i++)
+			if (!Character.isLetter(t[i]))
+				return false;
+		return true;
+	}
+
+	/** Skip the letters, digits, marks and underscores from i. */
+	private static int skipRun(char[] t, int i, int end) {
+		while (i < end) {
+			char c = t[i];
+			if (c < 0x80) {
+				if (!ASCII_WORD_CHARS[c])
+					return i;
+				i++;
+			} else {
+				int cp = Character.codePointAt(t, i, end);
+				if (!isWordCodePoint(cp))
+					return i;
+				i += Character.charCount(cp);
+			}
+		}
+		return i;
+	}
+
+	/** Skip the labels of a domain name from i. */
+	private static int skipDomain(char[] t, int i, int end) {
+		i = skipRun(t, i, end);
+		while (i + 1 < end && (t[i] == '.' || t[i] == '-')
+				&& isWordChar(t, i + 1, end))
+			i = skipRun(t, i + 1, end);
+		return i;
+	}
+
+	/** Skip the rest of a URL, up to a space, but for final punctuation. */
+	private static int skipUrl(char[] t, int i, int end) {
+		while (i < end && !Character.isWhitespace(t[i]))
+			i++;
+		while (".,;:!?)]}'\"".indexOf(t[i - 1]) >= 0)
+			i--;
+		return i;
+	}
+
+	private static final boolean[] ASCII_WORD_CHARS = new boolean[0x80];
+	static {
+		for (char c = 0; c < 0x80; c++)
+			ASCII_WORD_CHARS[c] = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+					|| c >= '0' && c <= '9' || c == '_';
+	}
+
+	private static boolean isWordChar(char[] t, int i, int end) {
+		char c = t[i];
+		if (c < 0x80)
+			return ASCII_WORD_CHARS[c];
+		return isWordCodePoint(Character.codePointAt(t, i, end));
+	}
+
+	private static boolean isWordCodePoint(int cp) {
+		if (Character.isLetterOrDigit(cp))
+			return true;
+		int type = Character.getType(cp);
+		return type == Character.NON_SPACING_MARK
+				|| type == Character.COMBINING_SPACING_MARK
+				|| type == Character.ENCLOSING_MARK
+				|| type == Character.CONNECTOR_PUNCTUATION;
+	}
+
+	/** Folder of the HTML files of the agreement check (see main). */
+	public static final String CHECK_CORPUS = "data/tokenizer";
+	/** Minimum agreement with CoreNLP on CHECK_CORPUS, both ways. */
+	public static final double MIN_AGREEMENT = 0.99;
+
+	/**
+	 * Cases of the rules above: a text, then its words separated by spaces.
+	 */
+	private static final String[][] CASES = {
+			{ "don't can't won't", "do n't ca n't wo n't" },
+			{ "it's we're i'll you'd i'm they've",
+					"it 's we 're i 'll you 'd i 'm they 've" },
+			{ "It\u2019s DON'T", "It \u2019s DO N'T" },
+			{ "o'neil 1990's", "o'neil 1990 's" },
+			{ "cannot Cannot", "can not Can not" },
+			{ "u.s. e.g. a.b.c i.e.", "u.s. e.g. a.b.c i.e." },
+			{ "a. b.c", "a b.c" },
+			{ "mr. smith, etc. jan. 5 Dr. No", "mr. smith etc. jan. 5 Dr. No" },
+			{ "the end. foo.bar", "the end foo bar" },
+			{ "3.14 1,000 12:30 v1.2 4.", "3.14 1,000 12:30 v1 2 4" },
+			{ "e-mail well-known 2-3 -x- a--b", "e-mail well-known 2-3 x a b" },
+			{ "see http://example.com/a?b=c. or (www.example.org),",
+					"see http://example.com/a?b=c or www.example.org" },
+			{ "mail foo.bar@mail.example.com!", "mail foo bar@mail.example.com" },
+			{ "<string> x </b> a<b <a b>", "x a b a b" },
+			{ "foo_bar na\u00efve \u65e5\u672c\u8a9e stra\u00dfe",
+					"foo_bar na\u00efve \u65e5\u672c\u8a9e stra\u00dfe" },
+			{ "$5 50% (paren) \"quoted\" 'single' well...",
+					"5 50 paren quoted single well" },
+			{ "", "" } };
+
+	/**
+	 * Compare the words counted by this tokenizer with those counted by
+	 * CoreNLP, on HTML files, as HtmlWordExtraction counts them. Prints, for
+	 * all the files, the number of words found by each, how many of them
+	 * agree (the sum over words of the smaller of the two counts), the time
+	 * each took, and the words with the largest differences.
+	 * 
+	 * With -check, also checks the rules on CASES, and fails (exit status 1)
+	 * if one of them is broken, or if less than MIN_AGREEMENT of the words of
+	 * either tokenizer agree, on the files given or on CHECK_CORPUS.
+	 * 
+	 * @param args
+	 *            [-check] files or folders
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean check = args.length > 0 && args[0].equals("-check");
+		if (args.length == 0) {
+			System.err.format("Usage: java %s [-check] <file or folder>...\n"
+					+ "With -check, the default folder is %s\n",
+					WordTokenizer.class.getName(), CHECK_CORPUS);
+			System.exit(1);
+		}
+		List<String> paths = new ArrayList<String>(Arrays.asList(args)
+				.subList(check ? 1 : 0, args.length));
+		if (paths.isEmpty())
+			paths.add(CHECK_CORPUS);
+		List<File> files = new ArrayList<File>();
+		for (String path : paths) {
+			File f = new File(path);
+			File[] list = f.listFiles();
+			if (list == null)
+				files.add(f);
+			else {
+				Arrays.sort(list);
+				files.addAll(Arrays.asList(list));
+			}
+		}
+
+		int failures = check ? checkCases() : 0;
+		double[] agreement = compare(files);
+		if (check) {
+			for (int i = 0; i < 2; i++)
+				if (agreement[i] < MIN_AGREEMENT) {
+					System.out.format("FAILED: agreement %.2f%% < %.2f%%\n",
+							100 * agreement[i], 100 * MIN_AGREEMENT);
+					failures++;
+				}
+			System.out.println(failures == 0 ? "Check passed" : "Check failed");
+			if (failures > 0)
+				System.exit(1);
+		}
+	}
+
+	/**
+	 * Check the words cut from the texts of CASES.
+	 * 
+	 * @return the number of cases that fail
+	 */
+	static int checkCases() {
+		int failures = 0;
+		final StringBuilder words = new StringBuilder();
+		WordTokenizer tokenizer = new WordTokenizer();
+		for (String[] c : CASES) {
+			words.setLength(0);
+			tokenizer.tokenize(c[0], (buf, offset, length) -> {
+				if (words.length() > 0)
+					words.append(' ');
+				words.append(buf, offset, length);
+			});
+			if (!words.toString().equals(c[1])) {
+				System.out.format("FAILED: \"%s\" gives \"%s\", not \"%s\"\n",
+						c[0], words, c[1]);
+				failures++;
+			}
+		}
+		System.out.format("%d of %d cases passed\n", CASES.length - failures,
+				CASES.length);
+		return failures;
+	}
+
+	/**
+	 * Compare the words counted by both tokenizers on files, and print the
+	 * report.
+	 * 
+	 * @param files
+	 * @return the agreement, as a fraction of the words of CoreNLP, then of
+	 *         the words of this tokenizer
+	 * @throws IOException
+	 */
+	static double[] compare(List<File> files) throws IOException {
+		final TermDictionary coreNlp = new TermDictionary();
+		final TermDictionary fast = new TermDictionary();
+		long coreNlpNanos = 0, fastNanos = 0;
+		for (File file : files) {
+			String text = HtmlWordExtraction.getText(file);
+			long start = System.nanoTime();
+			HtmlWordExtraction.countWords(text, coreNlp);
+			coreNlpNanos += System.nanoTime() - start;
+			start = System.nanoTime();
+			HtmlWordExtraction.countWords(text, fast, new WordTokenizer());
+			fastNanos += System.nanoTime() - start;
+		}
+
+		// agreement, and differences by word
+		long common = 0;
+		final TermDictionary all = new TermDictionary(coreNlp.size());
+		all.addAll(coreNlp);
+		all.addAll(fast);
+		final long[] diff = new long[all.size()];
+		for (int id = 0; id < all.size(); id++) {
+			String word = all.getTerm(id);
+			int a = coreNlp.find(word), b = fast.find(word);
+			long ca = a < 0 ? 0 : coreNlp.getCount(a);
+			long cb = b < 0 ? 0 : fast.getCount(b);
+			common += Math.min(ca, cb);
+			diff[id] = cb - ca;
+		}
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id = 0; id < all.size(); id++)
+			if (diff[id] != 0)
+				ids.add(id);
+		Collections.sort(ids, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(Math.abs(diff[o2]), Math.abs(diff[o1]));
+			}
+		});
+
+		System.out.format("%d files\n", files.size());
+		System.out.format("CoreNLP: %d words (%d distinct), %.1f ms\n",
+				coreNlp.getTotalCount(), coreNlp.size(), coreNlpNanos / 1e6);
+		System.out.format("Fast:    %d words (%d distinct), %.1f ms\n",
+				fast.getTotalCount(), fast.size(), fastNanos / 1e6);
+		System.out.format("Agreement: %.2f%% of CoreNLP words, %.2f%% of "
+				+ "fast words; speedup %.1fx\n", 100.0 * common
+				/ Math.max(coreNlp.getTotalCount(), 1), 100.0 * common
+				/ Math.max(fast.getTotalCount(), 1), (double) coreNlpNanos
+				/ Math.max(fastNanos, 1));
+		System.out.println("Largest differences (fast - CoreNLP):");
+		for (int id : ids.subList(0, Math.min(30, ids.size())))
+			System.out.format("%+8d %s\n", diff[id], all.getTerm(id));
+		return new double[] {
+				(double) common / Math.max(coreNlp.getTotalCount(), 1),
+				(double) common / Math.max(fast.getTotalCount(), 1) };
+	}
+}
@@ -0,0 +1,649 @@
+package util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Benchmarks of the ARC I/O path, on a dump generated by ArcGenerator (or any
+ * dump given with its index):
+ * 
+ * build: ArcIndexBuilder throughput, for each number of threads.
+ * load: opening an index with ArcIndexReader and reading all its offsets,
+ * plain and compact.
+ * random: getRecord on random ids, for each number of concurrent threads,
+ * with latency percentiles.
+ * scan: getRecord on consecutive ids, from one thread.
+ * parse: ArcRecord.parseArcRecord on records held in memory.
+ * 
+ * Like JMH, each benchmark runs warmup iterations, then measured iterations
+ * of a fixed duration, and reports the mean score with its standard
+ * deviation. Allocation per operation comes from the allocation counters of
+ * the benchmark threads (what the JMH gc profiler reports as
+ * gc.alloc.rate.norm; threads started by the benchmarked code, such as
+ * those of a parallel index build, are not counted), and the collections of
+ * the measured iterations are counted. The dump is read through the page
+ * cache: after generating it, it is usually cached, so drop the caches to
+ * measure cold reads.
+ * 
+ * Results can be appended to a CSV file, to compare runs and catch
+ * regressions.
+ * 
+ */
+public class ArcBenchmark {
+
+	public static final String[] BENCHMARKS = { "build", "load", "random",
+			"scan", "parse" };
+	/** Records held in memory by the parse benchmark. */
+	public static final int PARSE_RECORDS = 10000;
+
+	private final String arcFile;
+	private final String idxFile;
+	private int warmup = 2;
+	private int iterations = 5;
+	private long iterationNanos = 1000000000L;
+	private int[] threads = { 1, 2, 4, 8 };
+	private boolean mapped = false;
+	private int readAhead = 0;
+	private final List<Result> results = new ArrayList<Result>();
+
+	private static volatile long sink; // defeats dead code elimination
+
+	public ArcBenchmark(String arcFile, String idxFile) {
+		this.arcFile = arcFile;
+		this.idxFile = idxFile;
+	}
+
+	/**
+	 * Set the number of warmup and measured iterations (default 2 and 5).
+	 * 
+	 * @param warmup
+	 * @param iterations
+	 */
+	public void setIterations(int warmup, int iterations) {
+		this.warmup = warmup;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Set the duration of an iteration (default 1000 ms). An iteration does
+	 * at least one operation, however long.
+	 * 
+	 * @param millis
+	 */
+	public void setIterationTime(long millis) {
+		this.iterationNanos = millis * 1000000L;
+	}
+
+	/**
+	 * Set the numbers of threads of the build and random benchmarks (default
+	 * 1, 2, 4 and 8).
+	 * 
+	 * @param threads
+	 */
+	public void setThreads(int[] threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Read the dump memory-mapped in the random and scan benchmarks (default
+	 * false).
+	 * 
+	 * @param mapped
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Set the read-ahead window of the scan benchmark (see
+	 * ArcRecordReader.setReadAhead), 0 for none (the default).
+	 * 
+	 * @param windowSize
+	 */
+	public void setReadAhead(int windowSize) {
+		this.readAhead = windowSize;
+	}
+
+	public List<Result> getResults() {
+		return results;
+	}
+
+	/**
+	 * Run a benchmark, printing its results as they come.
+	 * 
+	 * @param benchmark
+	 *            one of BENCHMARKS
+	 * @throws Exception
+	 */
+	public void run(String benchmark) throws Exception {
+		if (benchmark.equals("build"))
+			runBuild();
+		else if (benchmark.equals("load"))
+			runLoad();
+		else if (benchmark.equals("random"))
+			runRandom();
+		else if (benchmark.equals("scan"))
+			runScan();
+		else if (benchmark.equals("parse"))
+			runParse();
+		else
+			throw new IllegalArgumentException("Unknown benchmark: "
+					+ benchmark);
+	}
+
+	private void runBuild() throws Exception {
+		final String out = idxFile + ".bench";
+		final long size = new File(arcFile).length();
+		try {
+			for (final int t : threads)
+				measure("build", t, 1, Unit.MB_PER_S, (deadline, probe) -> {
+					do {
+						ArcIndexBuilder builder = new ArcIndexBuilder(arcFile,
+								out);
+						builder.setThreads(t);
+						long start = System.nanoTime();
+						builder.build();
+						probe.op(size, System.nanoTime() - start);
+					} while (System.nanoTime() < deadline);
+				});
+		} finally {
+			new File(out).delete();
+		}
+	}
+
+	private void runLoad() throws Exception {
+		String compact = idxFile + ".compact.bench";
+		try {
+			ArcIndexBuilder builder = new ArcIndexBuilder(arcFile, compact);
+			builder.setCompact(CompactIndex.DEFAULT_INTERVAL);
+			builder.build();
+			String[] names = { "load", "load-compact" };
+			String[] files = { idxFile, compact };
+			for (int i = 0; i < names.length; i++) {
+				final String idx = files[i];
+				measure(names[i], 1, 1, Unit.MS_PER_OP, (deadline, probe) -> {
+					long x = 0;
+					do {
+						long start = System.nanoTime();
+						ArcIndexReader index = new ArcIndexReader(idx);
+						int n = index.getNumRecords();
+						for (int id = 0; id <= n; id++)
+							x += index.getRecordOffset(id);
+						probe.op(8L * n, System.nanoTime() - start);
+					} while (System.nanoTime() < deadline);
+					sink += x;
+				});
+			}
+		} finally {
+			new File(compact).delete();
+		}
+	}
+
+	private void runRandom() throws Exception {
+		final ArcRecordReader reader = new ArcRecordReader(arcFile, idxFile,
+				mapped);
+		try {
+			final int n = reader.getNumRecords();
+			for (int t : threads)
+				measure("random", t, t, Unit.OPS_PER_S, (deadline, probe) -> {
+					SplittableRandom rnd = new SplittableRandom(Thread
+							.currentThread().getId());
+					long x = 0;
+					do {
+						int id = rnd.nextInt(n);
+						long start = System.nanoTime();
+						ByteBuffer record = reader.getRecord(id);
+						x += record.get(record.limit() - 1);
+						probe.op(record.remaining(), System.nanoTime() - start);
+					} while (System.nanoTime() < deadline);
+					sink += x;
+				});
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void runScan() throws Exception {
+		final ArcRecordReader reader = new ArcRecordReader(arcFile, idxFile,
+				mapped);
+		reader.setReadAhead(readAhead, false);
+		try {
+			final int n = reader.getNumRecords();
+			final int[] next = { 0 }; // resumes where the last iteration stopped
+			measure("scan", 1, 1, Unit.MB_PER_S, (deadline, probe) -> {
+				long x = 0;
+				do {
+					int id = next[0];
+					next[0] = id + 1 == n ? 0 : id + 1;
+					long start = System.nanoTime();
+					ByteBuffer record = reader.getRecord(id);
+					x += record.get(record.limit() - 1);
+					probe.op(record.remaining(), System.nanoTime() - start);
+				} while (System.nanoTime() < deadline);
+				sink += x;
+			});
+			if (reader.getReadAhead() != null)
+				System.err.println("Read-ahead: " + reader.getReadAhead());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void runParse() throws Exception {
+		ArcRecordReader reader = new ArcRecordReader(arcFile, idxFile);
+		final ByteBuffer[] records;
+		try {
+			records = new ByteBuffer[Math.min(PARSE_RECORDS, reader
+					.getNumRecords())];
+			for (int id = 0; id < records.length; id++) {
+				ByteBuffer record = reader.getRecord(id);
+				// header line only: the data is not parsed
+				int end = record.position();
+				while (record.get(end) != '\n')
+					end++;
+				byte[] header = new byte[end + 1 - record.position()];
+				record.get(header);
+				records[id] = ByteBuffer.wrap(header);
+			}
+		} finally {
+			reader.close();
+		}
+		measure("parse", 1, 1, Unit.NS_PER_OP, (deadline, probe) -> {
+			long x = 0;
+			int k = 0;
+			do {
+				// time batches: a single parse is too short for the clock
+				long start = System.nanoTime();
+				for (int i = 0; i < 1000; i++, k = k + 1 == records.length ? 0
+						: k + 1) {
+					ByteBuffer header = records[k];
+					x += ArcRecord.parseArcRecord(header, 0,
+							header.limit() - 1).getLength();
+				}
+				probe.ops(1000, System.nanoTime() - start);
+			} while (System.nanoTime() < deadline);
+			sink += x;
+		});
+	}
+
+	/** Units of the scores. */
+	public enum Unit {
+		MB_PER_S("MB/s"), OPS_PER_S("ops/s"), MS_PER_OP("ms/op"), NS_PER_OP(
+				"ns/op");
+
+		private final String label;
+
+		Unit(String label) {
+			this.label = label;
+		}
+
+		double score(long ops, long bytes, long nanos) {
+			switch (this) {
+			case MB_PER_S:
+				return bytes / (nanos / 1e9) / (1 << 20);
+			case OPS_PER_S:
+				return ops / (nanos / 1e9);
+			case MS_PER_OP:
+				return nanos / 1e6 / ops;
+			default:
+				return nanos / (double) ops;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	/** The work of one benchmark thread. */
+	interface Work {
+		/**
+		 * Do operations until the deadline (at least one).
+		 * 
+		 * @param deadline
+		 *            in System.nanoTime time
+		 * @param probe
+		 *            to count the operations in
+		 * @throws Exception
+		 */
+		void run(long deadline, Probe probe) throws Exception;
+	}
+
+	/**
+	 * Counts of one thread during one iteration: operations, bytes processed,
+	 * and latencies in power-of-two buckets of nanoseconds. Recording does
+	 * not allocate.
+	 */
+	static class Probe {
+		long ops, bytes, allocated;
+		final long[] latencies = new long[64];
+
+		void op(long bytes, long nanos) {
+			ops++;
+			this.bytes += bytes;
+			latencies[64 - Long.numberOfLeadingZeros(Math.max(nanos, 1))]++;
+		}
+
+		/** Several operations timed together: no latency recorded. */
+		void ops(long n, long nanos) {
+			ops += n;
+		}
+	}
+
+	/** Result of a benchmark, over the measured iterations. */
+	public static class Result {
+		public final String benchmark;
+		public final int threads;
+		public final Unit unit;
+		public final double score, error; // mean and standard deviation
+		public final double allocatedPerOp; // bytes, -1 if not supported
+		public final long gcCount, gcMillis;
+		public final double p50, p99; // latency in us, -1 if not recorded
+
+		Result(String benchmark, int threads, Unit unit, double[] scores,
+				double allocatedPerOp, long gcCount, long gcMillis,
+				double p50, double p99) {
+			this.benchmark = benchmark;
+			this.threads = threads;
+			this.unit = unit;
+			double sum = 0, sum2 = 0;
+			for (double s : scores)
+				sum += s;
+			score = sum / scores.length;
+			for (double s : scores)
+				sum2 += (s - score) * (s - score);
+			error = scores.length > 1 ? Math.sqrt(sum2 / (scores.length - 1))
+					: 0;
+			this.allocatedPerOp = allocatedPerOp;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+			this.p50 = p50;
+			this.p99 = p99;
+		}
+
+		static final String HEADER = String.format(
+				"%-14s %7s %12s %10s %-6s %12s %5s %7s %9s %9s", "Benchmark",
+				"Threads", "Score", "Error", "Units", "Alloc B/op", "GCs",
+				"GC ms", "p50 us", "p99 us");
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%-14s %7d %12.3f %10.3f %-6s %12s %5d %7d %9s %9s",
+					benchmark, threads, score, error, unit,
+					allocatedPerOp < 0 ? "n/a" : String.format("%.1f",
+							allocatedPerOp), gcCount, gcMillis,
+					p50 < 0 ? "" : String.format("%.1f", p50), p99 < 0 ? ""
+							: String.format("%.1f", p99));
+		}
+
+		String toCsv() {
+			return String.format("%s,%d,%.4f,%.4f,%s,%.1f,%d,%d,%.1f,%.1f",
+					benchmark, threads, score, error, unit, allocatedPerOp,
+					gcCount, gcMillis, p50, p99);
+		}
+	}
+
+	/**
+	 * Run the iterations of a benchmark on a number of threads.
+	 * 
+	 * @param name
+	 * @param label
+	 *            number of threads reported
+	 * @param workers
+	 *            number of threads running the work
+	 * @param unit
+	 * @param work
+	 * @throws Exception
+	 */
+	private void measure(String name, int label, int workers, Unit unit,
+			Work work) throws Exception {
+		final com.sun.management.ThreadMXBean allocations = getAllocationBean();
+
+		double[] scores = new double[iterations];
+		long ops = 0, allocated = 0, gcCount = 0, gcMillis = 0;
+		long[] latencies = new long[64];
+		for (int it = -warmup; it < iterations; it++) {
+			final Probe[] probes = new Probe[workers];
+			final Exception[] failure = new Exception[1];
+			final CyclicBarrier start = new CyclicBarrier(workers + 1);
+			final long[] deadline = new long[1];
+			Thread[] pool = new Thread[workers];
+			for (int w = 0; w < workers; w++) {
+				final Probe probe = probes[w] = new Probe();
+				pool[w] = new Thread(() -> {
+					try {
+						start.await();
+						long id = Thread.currentThread().getId();
+						long before = allocations == null ? 0 : allocations
+								.getThreadAllocatedBytes(id);
+						work.run(deadline[0], probe);
+						probe.allocated = allocations == null ? 0
+								: allocations.getThreadAllocatedBytes(id)
+										- before;
+					} catch (Exception e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}, "benchmark-" + w);
+				pool[w].start();
+			}
+			long[] gc = gcCounts();
+			long begin = System.nanoTime();
+			deadline[0] = begin + iterationNanos;
+			start.await();
+			for (Thread t : pool)
+				t.join();
+			long elapsed = System.nanoTime() - begin;
+			long[] gcAfter = gcCounts();
+			synchronized (failure) {
+				if (failure[0] != null)
+					throw failure[0];
+			}
+
+			long iterOps = 0, iterBytes = 0, iterAllocated = 0;
+			for (Probe p : probes) {
+				iterOps += p.ops;
+				iterBytes += p.bytes;
+				iterAllocated += p.allocated;
+			}
+			double score = unit.score(iterOps, iterBytes, elapsed);
+			if (unit == Unit.MS_PER_OP || unit == Unit.NS_PER_OP)
+				// time per operation of each thread, not of the iteration
+				score *= workers;
+			System.err.format("%s %s iteration %d: %.3f %s\n", name,
+					it < 0 ? "warmup" : "measured", it < 0 ? it + warmup + 1
+							: it + 1, score, unit);
+			if (it < 0)
+				continue;
+			scores[it] = score;
+			ops += iterOps;
+			allocated += iterAllocated;
+			gcCount += gcAfter[0] - gc[0];
+			gcMillis += gcAfter[1] - gc[1];
+			for (Probe p : probes)
+				for (int b = 0; b < 64; b++)
+					latencies[b] += p.latencies[b];
+		}
+		Result result = new Result(name, label, unit, scores,
+				allocations == null ? -1 : allocated / (double) ops, gcCount,
+				gcMillis, percentile(latencies, 0.5), percentile(latencies,
+						0.99));
+		results.add(result);
+		System.out.println(result);
+	}
+
+	/**
+	 * Get the bean counting the bytes allocated by each thread.
+	 * 
+	 * @return the bean, or null if the JVM does not count them
+	 */
+	private static com.sun.management.ThreadMXBean getAllocationBean() {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mx;
+		if (!bean.isThreadAllocatedMemorySupported())
+			return null;
+		bean.setThreadAllocatedMemoryEnabled(true);
+		return bean;
+	}
+
+	private static long[] gcCounts() {
+		long count = 0, millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return new long[] { count, millis };
+	}
+
+	/**
+	 * Get a latency percentile from power-of-two buckets.
+	 * 
+	 * @return the upper bound of the bucket, in microseconds, or -1 if no
+	 *         latency was recorded
+	 */
+	private static double percentile(long[] buckets, double p) {
+		long total = 0;
+		for (long b : buckets)
+			total += b;
+		if (total == 0)
+			return -1;
+		long rank = (long) Math.ceil(p * total), seen = 0;
+		for (int b = 0; b < buckets.length; b++) {
+			seen += buckets[b];
+			if (seen >= rank)
+				return (1L << b) / 1000.0;
+		}
+		return -1;
+	}
+
+	/**
+	 * Main program.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		long size = 256 << 20;
+		long seed = 1;
+		String dir = System.getProperty("java.io.tmpdir");
+		String arc = null, idx = null;
+		int[] threads = null;
+		int warmup = 2, iterations = 5;
+		long time = 1000;
+		boolean mapped = false;
+		int readAhead = 0;
+		String csv = null;
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("-"); i++) {
+				if (args[i].equals("-size"))
+					size = ArcGenerator.parseSize(args[++i]);
+				else if (args[i].equals("-seed"))
+					seed = Long.parseLong(args[++i]);
+				else if (args[i].equals("-dir"))
+					dir = args[++i];
+				else if (args[i].equals("-dump")) {
+					arc = args[++i];
+					idx = args[++i];
+				} else if (args[i].equals("-threads")) {
+					String[] t = args[++i].split(",");
+					threads = new int[t.length];
+					for (int k = 0; k < t.length; k++)
+						threads[k] = Integer.parseInt(t[k]);
+				} else if (args[i].equals("-warmup"))
+					warmup = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-iterations"))
+					iterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-time"))
+					time = Long.parseLong(args[++i]);
+				else if (args[i].equals("-mapped"))
+					mapped = true;
+				else if (args[i].equals("-readAhead"))
+					readAhead = (int) ArcGenerator.parseSize(args[++i]);
+				else if (args[i].equals("-csv"))
+					csv = args[++i];
+				else
+					throw new IllegalArgumentException(args[i]);
+			}
+			for (int k = i; k < args.length; k++)
+				if (!Arrays.asList(BENCHMARKS).contains(args[k]))
+					throw new IllegalArgumentException(args[k]);
+			if (iterations < 1 || warmup < 0 || time < 1)
+				throw new IllegalArgumentException();
+		} catch (RuntimeException e) {
+			i = -1;
+		}
+		if (i < 0) {
+			System.err.format("Usage: java %s [-size <bytes>[k|m|g]] "
+					+ "[-seed <n>] [-dir <directory>] "
+					+ "[-dump <dump.arc> <dump.idx>] [-threads <n,n,...>] "
+					+ "[-warmup <n>] [-iterations <n>] [-time <ms>] "
+					+ "[-mapped] [-readAhead <bytes>[k|m]] [-csv <file>] "
+					+ "[<benchmark>...]\n"
+					+ "Benchmarks: %s (default all)\n",
+					ArcBenchmark.class.getName(), String.join(", ",
+							BENCHMARKS));
+			return;
+		}
+
+		if (arc == null) {
+			// the generated dump is kept for the next runs
+			String name = String.format("arcbench-%d-%d", seed, size);
+			arc = new File(dir, name + ".arc").getPath();
+			idx = new File(dir, name + ".idx").getPath();
+			if (!new File(arc).exists() || !new File(idx).exists()) {
+				System.err.format("Generating %s...\n", arc);
+				ArcGenerator generator = new ArcGenerator(seed);
+				generator.setThreads(Runtime.getRuntime()
+						.availableProcessors());
+				generator.generate(arc, idx, Integer.MAX_VALUE - 1, size);
+			}
+		}
+		ArcBenchmark benchmark = new ArcBenchmark(arc, idx);
+		benchmark.setIterations(warmup, iterations);
+		benchmark.setIterationTime(time);
+		benchmark.setMapped(mapped);
+		benchmark.setReadAhead(readAhead);
+		if (threads != null)
+			benchmark.setThreads(threads);
+		System.out.format("# %s: %d records, %d bytes\n", arc,
+				ArcIndexReader.countRecords(idx), new File(arc).length());
+		System.out.println(Result.HEADER);
+		String[] names = i < args.length ? Arrays.copyOfRange(args, i,
+				args.length) : BENCHMARKS;
+		for (String name : names)
+			benchmark.run(name);
+
+		if (csv != null) {
+			boolean header = !new File(csv).exists();
+			PrintWriter out = new PrintWriter(new FileWriter(csv, true));
+			try {
+				if (header)
+					out.println("benchmark,threads,score,error,unit,"
+							+ "alloc_per_op,gc_count,gc_ms,p50_us,p99_us");
+				for (Result r : benchmark.getResults())
+					out.println(r.toCsv());
+			} finally {
+				out.close();
+			}
+			if (out.checkError())
+				throw new IOException("Cannot write " + csv);
+		}
+	}
+}
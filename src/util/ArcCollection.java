@@ -0,0 +1,375 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A collection of ARC dumps, listed in a manifest, read as one: records have
+ * global ids, from 0 to getNumRecords() - 1, following the order of the
+ * manifest.
+ * 
+ * Manifest format: one dump per line, "dump.arc dump.idx [records]"; paths
+ * are relative to the manifest's directory; empty lines and lines starting
+ * with # are ignored. Without the number of records, it is read from the end
+ * of the index when the collection is opened.
+ * 
+ * Global ids are resolved with a prefix sum of the record counts (one long
+ * per dump) and a binary search. Dumps are opened on demand, and at most
+ * maxOpen readers are kept open: the least recently used one is closed when
+ * another has to be opened (a reader still in use by a stream is closed when
+ * that stream is closed).
+ * 
+ */
+public class ArcCollection {
+
+	public static final int DEFAULT_MAX_OPEN = 64;
+
+	private final String[] arcFiles;
+	private final String[] idxFiles;
+	// firstId[i] is the global id of the first record of dump i
+	private final long[] firstId;
+	private final int maxOpen;
+	private final boolean mapped;
+
+	// Open readers, in access order
+	private final LinkedHashMap<Integer, Handle> open = new LinkedHashMap<Integer, Handle>(
+			16, 0.75f, true);
+
+	/**
+	 * Constructor, with at most DEFAULT_MAX_OPEN dumps open.
+	 * 
+	 * @param manifest
+	 * @throws IOException
+	 */
+	public ArcCollection(String manifest) throws IOException {
+		this(manifest, DEFAULT_MAX_OPEN, false);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param manifest
+	 * @param maxOpen
+	 *            maximum number of dumps kept open
+	 * @param mapped
+	 *            open the dumps in mapped mode (see ArcRecordReader)
+	 * @throws IOException
+	 */
+	public ArcCollection(String manifest, int maxOpen, boolean mapped)
+			throws IOException {
+		if (maxOpen < 1)
+			throw new IllegalArgumentException("maxOpen=" + maxOpen);
+		this.maxOpen = maxOpen;
+		this.mapped = mapped;
+		File dir = new File(manifest).getAbsoluteFile().getParentFile();
+		List<String> arcs = new ArrayList<String>(), idxs = new ArrayList<String>();
+		List<Long> counts = new ArrayList<Long>();
+		BufferedReader in = new BufferedReader(new FileReader(manifest));
+		try {
+			String line;
+			for (int n = 1; (line = in.readLine()) != null; n++) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length < 2 || fields.length > 3)
+					throw new IOException(String.format(
+							"%s, line %d: expected \"dump.arc dump.idx "
+									+ "[records]\"", manifest, n));
+				String arc = resolve(dir, fields[0]), idx = resolve(dir,
+						fields[1]);
+				arcs.add(arc);
+				idxs.add(idx);
+				try {
+					counts.add(fields.length == 3 ? Long.parseLong(fields[2])
+							: ArcIndexReader.countRecords(idx));
+				} catch (NumberFormatException e) {
+					throw new IOException(String.format(
+							"%s, line %d: invalid number of records", manifest,
+							n));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		arcFiles = arcs.toArray(new String[arcs.size()]);
+		idxFiles = idxs.toArray(new String[idxs.size()]);
+		firstId = new long[arcFiles.length + 1];
+		for (int i = 0; i < arcFiles.length; i++)
+			firstId[i + 1] = firstId[i] + counts.get(i);
+	}
+
+	private static String resolve(File dir, String path) {
+		File f = new File(path);
+		return (f.isAbsolute() ? f : new File(dir, path)).getPath();
+	}
+
+	/**
+	 * Get the total number of records.
+	 * 
+	 * @return
+	 */
+	public long getNumRecords() {
+		return firstId[arcFiles.length];
+	}
+
+	public int getNumDumps() {
+		return arcFiles.length;
+	}
+
+	public String getArcFile(int dump) {
+		return arcFiles[dump];
+	}
+
+	/**
+	 * Get the dump holding a record.
+	 * 
+	 * @param id
+	 *            global record id
+	 * @return
+	 */
+	public int getDump(long id) {
+		if (id < 0 || id >= getNumRecords())
+			throw new IndexOutOfBoundsException("No record " + id);
+		// Last dump whose first id is <= id (skips empty dumps)
+		int lo = 0, hi = arcFiles.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (firstId[mid] <= id)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Get the global id of a record of a dump.
+	 * 
+	 * @param dump
+	 * @param id
+	 *            id of the record in the dump
+	 * @return
+	 */
+	public long getGlobalId(int dump, int id) {
+		return firstId[dump] + id;
+	}
+
+	/**
+	 * Same as ArcRecordReader.getRecord, for a global record id.
+	 * 
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer getRecord(long id) throws IOException {
+		int dump = getDump(id);
+		Handle h = acquire(dump);
+		try {
+			return h.reader.getRecord((int) (id - firstId[dump]));
+		} finally {
+			release(h);
+		}
+	}
+
+	/**
+	 * Same as ArcRecordReader.readRecord, for a global record id. The id of
+	 * the result (ArcRecord.getId) is the id in its dump.
+	 * 
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	public ArcRecord readRecord(long id) throws IOException {
+		int dump = getDump(id);
+		Handle h = acquire(dump);
+		try {
+			return h.reader.readRecord((int) (id - firstId[dump]));
+		} finally {
+			release(h);
+		}
+	}
+
+	/**
+	 * Get a sequential stream over all the records, dump after dump. Each
+	 * dump is open only while its records are streamed. I/O errors are thrown
+	 * as UncheckedIOException.
+	 * 
+	 * @return
+	 */
+	public Stream<ArcRecord> stream() {
+		return IntStream.range(0, arcFiles.length).boxed().flatMap(
+				this::records);
+	}
+
+	/**
+	 * Get a parallel stream over all the records. Dumps are read in parallel,
+	 * each sequentially by one thread.
+	 * 
+	 * @return
+	 */
+	public Stream<ArcRecord> parallelStream() {
+		return IntStream.range(0, arcFiles.length).parallel().boxed().flatMap(
+				this::records);
+	}
+
+	private Stream<ArcRecord> records(int dump) {
+		if (firstId[dump + 1] == firstId[dump])
+			return Stream.empty();
+		final Handle h;
+		try {
+			h = acquire(dump);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return h.reader.stream().onClose(() -> release(h));
+	}
+
+	/**
+	 * Get the number of dumps currently open.
+	 * 
+	 * @return
+	 */
+	public int getOpenCount() {
+		synchronized (open) {
+			return open.size();
+		}
+	}
+
+	/**
+	 * Close all the readers that are not in use; the others are closed when
+	 * they are released.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (open) {
+			for (Handle h : open.values())
+				h.evict();
+			open.clear();
+		}
+	}
+
+	/**
+	 * An open reader, and the number of threads using it.
+	 */
+	private static class Handle {
+		final ArcRecordReader reader;
+		int users;
+		boolean evicted;
+
+		Handle(ArcRecordReader reader) {
+			this.reader = reader;
+		}
+
+		void evict() {
+			evicted = true;
+			if (users == 0)
+				closeQuietly(reader);
+		}
+	}
+
+	private Handle acquire(int dump) throws IOException {
+		synchronized (open) {
+			Handle h = open.get(dump);
+			if (h != null) {
+				h.users++;
+				return h;
+			}
+		}
+		// Open outside the lock, so that other dumps stay available
+		ArcRecordReader reader = new ArcRecordReader(arcFiles[dump],
+				idxFiles[dump], mapped);
+		synchronized (open) {
+			Handle h = open.get(dump);
+			if (h != null)
+				closeQuietly(reader); // Opened by another thread meanwhile
+			else {
+				h = new Handle(reader);
+				open.put(dump, h);
+				Iterator<Handle> lru = open.values().iterator();
+				while (open.size() > maxOpen) {
+					lru.next().evict();
+					lru.remove();
+				}
+			}
+			h.users++;
+			return h;
+		}
+	}
+
+	private void release(Handle h) {
+		synchronized (open) {
+			if (--h.users == 0 && h.evicted)
+				closeQuietly(h.reader);
+		}
+	}
+
+	private static void closeQuietly(ArcRecordReader reader) {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			// Read-only file
+		}
+	}
+
+	/**
+	 * Main program. With -create, writes a manifest (with record counts) for
+	 * the given dumps; otherwise prints the number of records of a
+	 * collection, and the header of the records given by global id.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length >= 2 && args[0].equals("-create")
+				&& args.length % 2 == 0) {
+			try {
+				PrintWriter out = new PrintWriter(new FileWriter(args[1]));
+				try {
+					for (int i = 2; i < args.length; i += 2)
+						out.format("%s %s %d\n", args[i], args[i + 1],
+								ArcIndexReader.countRecords(args[i + 1]));
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		if (args.length < 1 || args[0].startsWith("-")) {
+			System.err.format("Usage: java %s <manifest> [<id>...]\n"
+					+ "       java %s -create <manifest> "
+					+ "[<dump.arc> <dump.idx>]...\n", ArcCollection.class
+					.getName(), ArcCollection.class.getName());
+			return;
+		}
+		try {
+			ArcCollection collection = new ArcCollection(args[0]);
+			System.out.format("%d dumps, %d records\n", collection
+					.getNumDumps(), collection.getNumRecords());
+			for (int i = 1; i < args.length; i++) {
+				long id = Long.parseLong(args[i]);
+				ArcRecord rec = collection.readRecord(id);
+				System.out.format("Record %d: dump=%s id=%d url=%s\n", id,
+						collection.getArcFile(collection.getDump(id)), rec
+								.getId(), rec.getUrl());
+			}
+			collection.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,718 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Write synthetic ARC dumps, for tests and benchmarks at any scale.
+ * 
+ * Records have the content types of a web crawl (mostly HTML, then images,
+ * scripts, style sheets, text and PDF), log-normal sizes, and a few redirects
+ * and errors. HTML pages are made of words drawn from a synthetic vocabulary
+ * with a Zipfian distribution, and link to other records of the dump. Some
+ * HTML records are exact or near duplicates (a few words changed) of earlier
+ * ones, under other URLs.
+ * 
+ * Each record is a function of the seed and of its id only, so the same seed
+ * gives the same dump whatever the number of threads, and a smaller dump is a
+ * prefix of a larger one. Records are generated by chunks of CHUNK_RECORDS in
+ * parallel, and written in order. The index (same as the one ArcIndexBuilder
+ * builds) can be written along, and the dump can be compressed (one gzip
+ * member per record).
+ * 
+ */
+public class ArcGenerator {
+
+	public static final int CHUNK_RECORDS = 256;
+	public static final int DEFAULT_VOCABULARY_SIZE = 50000;
+	public static final int MAX_BODY_SIZE = 4 << 20;
+	/** Fraction of the words of paragraphs that are links. */
+	public static final double LINK_RATE = 0.05;
+	/** Fraction of the words of near duplicates that are changed. */
+	public static final double MUTATION_RATE = 0.01;
+
+	/** Content types, their share of the records, median size and spread. */
+	static final String[] TYPES = { "text/html", "image/jpeg", "image/png",
+			"image/gif", "text/css", "application/javascript", "text/plain",
+			"application/pdf" };
+	static final double[] TYPE_SHARES = { 0.60, 0.12, 0.08, 0.05, 0.04, 0.05,
+			0.03, 0.03 };
+	static final int[] MEDIAN_SIZES = { 20000, 30000, 12000, 3000, 8000,
+			25000, 4000, 150000 };
+	static final double[] SIGMAS = { 0.9, 1.2, 1.3, 1.2, 1.0, 1.1, 1.2, 1.3 };
+	static final String[] EXTENSIONS = { "html", "jpg", "png", "gif", "css",
+			"js", "txt", "pdf" };
+	static final byte[][] MAGICS = { null,
+			{ (byte) 0xff, (byte) 0xd8, (byte) 0xff },
+			{ (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' },
+			"GIF89a".getBytes(StandardCharsets.ISO_8859_1), null, null, null,
+			"%PDF-1.4\n".getBytes(StandardCharsets.ISO_8859_1) };
+
+	private static final String[] SYLLABLES = { "a", "ba", "be", "bi", "bo",
+			"ca", "ce", "co", "da", "de", "di", "do", "e", "fa", "fe", "fi",
+			"ga", "go", "ha", "he", "hi", "i", "ka", "ke", "la", "le", "li",
+			"lo", "lu", "ma", "me", "mi", "mo", "na", "ne", "ni", "no", "o",
+			"pa", "pe", "po", "ra", "re", "ri", "ro", "ru", "sa", "se", "si",
+			"so", "ta", "te", "ti", "to", "tu", "u", "va", "ve", "vi", "za",
+			"ar", "er", "in", "on", "st", "nd", "th", "ng", "nt", "ck" };
+
+	// random streams of a record
+	private static final int PROFILE = 0, BODY = 1, MUTATION = 2, URL = 3;
+
+	private final long seed;
+	private int threads = 1;
+	private boolean gzip = false;
+	private int vocabularySize = DEFAULT_VOCABULARY_SIZE;
+	private int hosts = 1000;
+	private double duplicates = 0.03;
+	private double nearDuplicates = 0.03;
+
+	private byte[][] vocabulary; // by decreasing frequency
+	private double logSize; // log of the vocabulary size + 1
+
+	public ArcGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the number of threads generating records (default 1).
+	 * 
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Compress the dump, one gzip member per record (default false).
+	 * 
+	 * @param gzip
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Set the number of distinct words of HTML pages (default
+	 * DEFAULT_VOCABULARY_SIZE).
+	 * 
+	 * @param size
+	 */
+	public void setVocabularySize(int size) {
+		this.vocabularySize = size;
+	}
+
+	/**
+	 * Set the number of host names URLs are spread over (default 1000).
+	 * 
+	 * @param hosts
+	 */
+	public void setHosts(int hosts) {
+		this.hosts = hosts;
+	}
+
+	/**
+	 * Set the fractions of HTML records that are exact and near duplicates of
+	 * earlier ones (default 0.03 each).
+	 * 
+	 * @param exact
+	 * @param near
+	 */
+	public void setDuplicates(double exact, double near) {
+		this.duplicates = exact;
+		this.nearDuplicates = near;
+	}
+
+	/**
+	 * Generate a dump. It ends after maxRecords records, or after the first
+	 * record reaching maxBytes, whichever comes first.
+	 * 
+	 * @param arcFile
+	 * @param idxFile
+	 *            the index to write along, or null
+	 * @param maxRecords
+	 *            number of records, not counting the first one (meta
+	 *            information about the dump)
+	 * @param maxBytes
+	 *            size of the dump
+	 * @return the number of records, not counting the first one
+	 * @throws IOException
+	 */
+	public int generate(String arcFile, String idxFile, int maxRecords,
+			long maxBytes) throws IOException {
+		if (vocabulary == null || vocabulary.length != vocabularySize)
+			buildVocabulary();
+		OutputStream out = new FileOutputStream(arcFile);
+		DataOutputStream index = null;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		int records = 0;
+		try {
+			if (idxFile != null)
+				index = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(idxFile), 1 << 16));
+			Chunk first = new Chunk(gzip);
+			try {
+				first.add(fileDescription(new File(arcFile).getName()));
+			} finally {
+				first.end();
+			}
+			out.write(first.data.array(), 0, first.data.size());
+			long written = first.data.size();
+			if (index != null)
+				index.writeLong(written);
+
+			ArrayDeque<Future<Chunk>> window = new ArrayDeque<Future<Chunk>>();
+			int next = 1; // first id of the next chunk to submit
+			boolean done = maxRecords <= 0 || written >= maxBytes;
+			while (!done) {
+				while (window.size() < 2 * threads && next <= maxRecords) {
+					final int from = next;
+					final int to = (int) Math.min((long) from + CHUNK_RECORDS,
+							(long) maxRecords + 1);
+					window.add(pool.submit(() -> generateChunk(from, to)));
+					next = to;
+				}
+				if (window.isEmpty())
+					break;
+				Chunk chunk = getResult(window.poll());
+				int end = 0;
+				for (int k = 0; k < chunk.count && !done; k++) {
+					end = chunk.ends[k];
+					written += end - (k == 0 ? 0 : chunk.ends[k - 1]);
+					if (index != null)
+						index.writeLong(written);
+					done = ++records >= maxRecords || written >= maxBytes;
+				}
+				out.write(chunk.data.array(), 0, end);
+			}
+		} finally {
+			pool.shutdownNow();
+			out.close();
+			if (index != null)
+				index.close();
+		}
+		return records;
+	}
+
+	private static Chunk getResult(Future<Chunk> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Records of consecutive ids, serialized. With gzip, each record is a
+	 * member, deflated by one Deflater for the whole chunk, as
+	 * GZIPOutputStream would write it.
+	 */
+	private static class Chunk {
+		private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+				Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff }; // OS unknown
+
+		final Buffer data = new Buffer();
+		int[] ends = new int[CHUNK_RECORDS];
+		int count;
+		private final Deflater deflater; // null without gzip
+		private final CRC32 crc;
+		private final byte[] deflated;
+
+		Chunk(boolean gzip) {
+			deflater = gzip ? new Deflater(Deflater.DEFAULT_COMPRESSION, true)
+					: null;
+			crc = gzip ? new CRC32() : null;
+			deflated = gzip ? new byte[1 << 12] : null;
+		}
+
+		void add(byte[] record) {
+			if (deflater != null) {
+				data.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+				deflater.reset();
+				deflater.setInput(record);
+				deflater.finish();
+				while (!deflater.finished())
+					data.write(deflated, 0, deflater.deflate(deflated));
+				crc.reset();
+				crc.update(record, 0, record.length);
+				writeIntLE((int) crc.getValue());
+				writeIntLE(record.length);
+			} else
+				data.write(record, 0, record.length);
+			if (count == ends.length)
+				ends = Arrays.copyOf(ends, 2 * count);
+			ends[count++] = data.size();
+		}
+
+		private void writeIntLE(int v) {
+			data.write(v);
+			data.write(v >>> 8);
+			data.write(v >>> 16);
+			data.write(v >>> 24);
+		}
+
+		/** Free the native memory of the deflater. */
+		void end() {
+			if (deflater != null)
+				deflater.end();
+		}
+	}
+
+	/** ASCII text being generated, appended to without encoding. */
+	private static class Text {
+		byte[] buf;
+		int length;
+
+		Text(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		Text append(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, length, b.length);
+			length += b.length;
+			return this;
+		}
+
+		Text append(String s) {
+			int n = s.length();
+			ensure(n);
+			for (int i = 0; i < n; i++)
+				buf[length++] = (byte) s.charAt(i);
+			return this;
+		}
+
+		Text append(char c) {
+			ensure(1);
+			buf[length++] = (byte) c;
+			return this;
+		}
+
+		Text append(int i) {
+			return append(Integer.toString(i));
+		}
+
+		private void ensure(int n) {
+			if (length + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(2 * buf.length, length + n));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, length);
+		}
+
+		@Override
+		public String toString() {
+			return new String(buf, 0, length, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer() {
+			super(1 << 16);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	private Chunk generateChunk(int from, int to) throws IOException {
+		Chunk chunk = new Chunk(gzip);
+		try {
+			for (int id = from; id < to; id++)
+				chunk.add(generateRecord(id));
+		} finally {
+			chunk.end();
+		}
+		return chunk;
+	}
+
+	private static byte[] fileDescription(String name) {
+		String meta = "1 0 InternetArchive\n"
+				+ "URL IP-address Archive-date Content-type Archive-length\n";
+		return (String.format("filedesc://%s 0.0.0.0 20100101000000 "
+				+ "text/plain %d\n", name, meta.length()) + meta + "\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Random choices of a record that do not depend on its body.
+	 */
+	private class Profile {
+		final int type; // index in TYPES
+		final int status;
+		final int size; // of the body
+		final boolean duplicate, nearDuplicate;
+		final String url;
+		final String date;
+		final String ip;
+
+		Profile(int id) {
+			SplittableRandom rnd = random(id, PROFILE);
+			int t = type(rnd);
+			double s = rnd.nextDouble();
+			status = s < 0.03 ? 301 : s < 0.07 ? 404 : 200;
+			type = status == 200 ? t : 0;
+			size = (int) Math.min(MAX_BODY_SIZE, MEDIAN_SIZES[t]
+					* Math.exp(SIGMAS[t] * gaussian(rnd)));
+			double d = rnd.nextDouble();
+			boolean dup = status == 200 && type == 0 && id > 1;
+			duplicate = dup && d < duplicates;
+			nearDuplicate = dup && !duplicate && d < duplicates + nearDuplicates;
+			Text text = new Text(64);
+			int host = appendUrl(text, id);
+			url = text.toString();
+			ip = String.format("10.%d.%d.%d", host >> 16 & 0xff,
+					host >> 8 & 0xff, host & 0xff);
+			date = String.format("2010%02d%02d%02d%02d%02d",
+					1 + rnd.nextInt(12), 1 + rnd.nextInt(28), rnd.nextInt(24),
+					rnd.nextInt(60), rnd.nextInt(60));
+		}
+	}
+
+	/**
+	 * Append the URL of a record (links need no more of its profile).
+	 * 
+	 * @param text
+	 * @param id
+	 * @return the host number
+	 */
+	private int appendUrl(Text text, int id) {
+		int t = type(random(id, PROFILE));
+		SplittableRandom rnd = random(id, URL);
+		int host = zipf(rnd, hosts);
+		text.append("http://www.").append(word(host)).append(".example.com/")
+				.append(word(below(rnd, 1000))).append('/').append(id).append(
+						'.').append(EXTENSIONS[t]);
+		return host;
+	}
+
+	/** First choice of the profile of a record: its content type. */
+	private static int type(SplittableRandom rnd) {
+		double u = rnd.nextDouble();
+		int t = 0;
+		while (t < TYPES.length - 1 && (u -= TYPE_SHARES[t]) >= 0)
+			t++;
+		return t;
+	}
+
+	/**
+	 * Generate a record, with the newline that ends it in the dump.
+	 * 
+	 * @param id
+	 *            from 1
+	 * @return
+	 */
+	byte[] generateRecord(int id) {
+		Profile p = new Profile(id);
+		byte[] body;
+		String type = TYPES[p.type];
+		String extra = "";
+		if (p.status != 200) {
+			Text text = new Text(64);
+			appendUrl(text, Math.max(1, id - 1
+					- random(id, BODY).nextInt(Math.min(id, 1000))));
+			String target = text.toString();
+			body = String.format("<html><head><title>%d</title></head>"
+					+ "<body><a href=\"%s\">%s</a></body></html>\n", p.status,
+					target, p.status == 301 ? "Moved" : "Not found").getBytes(
+					StandardCharsets.ISO_8859_1);
+			if (p.status == 301)
+				extra = "Location: " + target + "\r\n";
+		} else if (p.type == 0) {
+			int source = id;
+			if (p.duplicate || p.nearDuplicate)
+				source = findSource(id);
+			body = html(source, p.nearDuplicate ? random(id, MUTATION) : null);
+		} else
+			body = binary(p, random(id, BODY));
+		String reason = p.status == 200 ? "OK"
+				: p.status == 301 ? "Moved Permanently" : "Not Found";
+		String header = String.format("HTTP/1.1 %d %s\r\n"
+				+ "Server: Apache/2.2.3\r\n" + "Content-Type: %s%s\r\n"
+				+ "Content-Length: %d\r\n" + "%s\r\n", p.status, reason, type,
+				type.startsWith("text/") ? "; charset=iso-8859-1" : "",
+				body.length, extra);
+		byte[] http = concat(header, body);
+		byte[] record = concat(String.format("%s %s %s %s %d\n", p.url, p.ip,
+				p.date, type, http.length), http);
+		record = Arrays.copyOf(record, record.length + 1);
+		record[record.length - 1] = '\n';
+		return record;
+	}
+
+	/**
+	 * Choose an earlier original HTML record to duplicate.
+	 */
+	private int findSource(int id) {
+		SplittableRandom rnd = random(id, MUTATION);
+		for (int attempt = 0; attempt < 100; attempt++) {
+			int j = 1 + rnd.nextInt(id - 1);
+			Profile q = new Profile(j);
+			if (q.status == 200 && q.type == 0 && !q.duplicate
+					&& !q.nearDuplicate)
+				return j;
+		}
+		return id; // no luck: an original page
+	}
+
+	/**
+	 * Generate the HTML body of a record.
+	 * 
+	 * @param id
+	 * @param mutation
+	 *            if not null, words are replaced at MUTATION_RATE
+	 * @return
+	 */
+	private byte[] html(int id, SplittableRandom mutation) {
+		Profile p = new Profile(id);
+		SplittableRandom rnd = random(id, BODY);
+		Text text = new Text(p.size + 1024);
+		text.append("<!DOCTYPE html>\n<html><head>\n"
+				+ "<meta http-equiv=\"Content-Type\" "
+				+ "content=\"text/html; charset=iso-8859-1\">\n<title>");
+		sentence(text, rnd, mutation, 3 + rnd.nextInt(6), false, id);
+		text.append("</title>\n");
+		if (rnd.nextInt(3) == 0)
+			text.append("<style type=\"text/css\">body { font-family: sans-serif; }"
+					+ " p { margin: 0 0 1em 0; }</style>\n");
+		if (rnd.nextInt(3) == 0)
+			text.append("<script type=\"text/javascript\">var pageId = ").append(
+					id).append("; function init() { return pageId > 0; }"
+					+ "</script>\n");
+		text.append("</head>\n<body>\n<h1>");
+		sentence(text, rnd, mutation, 2 + rnd.nextInt(5), false, id);
+		text.append("</h1>\n");
+		while (text.length < p.size) {
+			text.append("<p>");
+			for (int n = 1 + rnd.nextInt(6); n > 0; n--) {
+				sentence(text, rnd, mutation, 5 + rnd.nextInt(20), true, id);
+				text.append(' ');
+			}
+			text.append("</p>\n");
+		}
+		text.append("</body></html>\n");
+		return text.toByteArray();
+	}
+
+	/**
+	 * Append a sentence of Zipfian words, with a few outlinks if asked.
+	 */
+	private void sentence(Text text, SplittableRandom rnd,
+			SplittableRandom mutation, int words, boolean links, int id) {
+		for (int i = 0; i < words; i++) {
+			byte[] w = vocabulary[zipf(rnd)];
+			if (mutation != null && mutation.nextDouble() < MUTATION_RATE)
+				w = vocabulary[zipf(mutation)];
+			if (i > 0)
+				text.append(' ');
+			if (links && rnd.nextDouble() < LINK_RATE) {
+				int target = Math.max(1, id + below(rnd, 20001) - 10000);
+				text.append("<a href=\"");
+				appendUrl(text, target);
+				text.append("\">");
+				appendWord(text, w, i == 0);
+				text.append("</a>");
+			} else
+				appendWord(text, w, i == 0);
+		}
+		if (links)
+			text.append('.');
+	}
+
+	private static void appendWord(Text text, byte[] w, boolean capital) {
+		text.append(w);
+		if (capital)
+			text.buf[text.length - w.length] -= 'a' - 'A';
+	}
+
+	private static byte[] binary(Profile p, SplittableRandom rnd) {
+		byte[] body = new byte[Math.max(p.size, 16)];
+		for (int i = 0; i < body.length; i += 8) {
+			long v = rnd.nextLong();
+			for (int k = 0; k < 8 && i + k < body.length; k++, v >>>= 8)
+				body[i + k] = (byte) v;
+		}
+		byte[] magic = MAGICS[p.type];
+		if (magic != null)
+			System.arraycopy(magic, 0, body, 0, magic.length);
+		else
+			// text types: printable bytes
+			for (int i = 0; i < body.length; i++)
+				body[i] = (byte) ((body[i] & 0x3f) == 0 ? '\n'
+						: ' ' + (body[i] & 0x3f));
+		return body;
+	}
+
+	private void buildVocabulary() {
+		Random rnd = new Random(seed);
+		Set<String> words = new HashSet<String>();
+		String[] v = new String[vocabularySize];
+		for (int i = 0; i < v.length;) {
+			StringBuilder sb = new StringBuilder();
+			int syllables = 1 + Math.min(rnd.nextInt(4), rnd.nextInt(4));
+			for (int k = 0; k < syllables; k++)
+				sb.append(SYLLABLES[rnd.nextInt(SYLLABLES.length)]);
+			String w = sb.toString();
+			if (words.add(w))
+				v[i++] = w;
+		}
+		// frequent words are short
+		Arrays.sort(v, (a, b) -> a.length() != b.length() ? a.length()
+				- b.length() : a.compareTo(b));
+		vocabulary = new byte[v.length][];
+		for (int i = 0; i < v.length; i++)
+			vocabulary[i] = v[i].getBytes(StandardCharsets.ISO_8859_1);
+		logSize = Math.log(v.length + 1);
+	}
+
+	/**
+	 * Rank of a word, Zipfian with exponent 1: by inversion of the continuous
+	 * distribution, P(k) is proportional to log((k + 2) / (k + 1)), about 1 /
+	 * (k + 1.5). No table to search, which matters for every word.
+	 */
+	private int zipf(SplittableRandom rnd) {
+		int k = (int) Math.exp(rnd.nextDouble() * logSize) - 1;
+		return Math.min(k, vocabulary.length - 1);
+	}
+
+	/** Zipfian rank below n: ranks from n on are spread uniformly. */
+	private int zipf(SplittableRandom rnd, int n) {
+		int r = zipf(rnd);
+		return r < n ? r : below(rnd, n);
+	}
+
+	/**
+	 * Uniform integer below n, cheaper than SplittableRandom.nextInt(n) (which
+	 * is on the path of every link); the bias is negligible for small n.
+	 */
+	private static int below(SplittableRandom rnd, int n) {
+		return (int) ((rnd.nextLong() >>> 32) * n >>> 32);
+	}
+
+	private byte[] word(int i) {
+		return vocabulary[i % vocabulary.length];
+	}
+
+	private SplittableRandom random(int id, int stream) {
+		long z = seed + id * 0x9E3779B97F4A7C15L + stream * 0x632BE59BD9B4E019L;
+		z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+		return new SplittableRandom(z ^ z >>> 31);
+	}
+
+	private static double gaussian(SplittableRandom rnd) {
+		double u = 1 - rnd.nextDouble(); // in (0, 1]
+		return Math.sqrt(-2 * Math.log(u))
+				* Math.cos(2 * Math.PI * rnd.nextDouble());
+	}
+
+	private static byte[] concat(String head, byte[] tail) {
+		byte[] h = head.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] all = Arrays.copyOf(h, h.length + tail.length);
+		System.arraycopy(tail, 0, all, h.length, tail.length);
+		return all;
+	}
+
+	/**
+	 * Parse a size such as 512k, 100m or 2g.
+	 */
+	static long parseSize(String s) {
+		char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+		int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30
+				: unit == 't' ? 40 : 0;
+		return Long.parseLong(shift == 0 ? s : s.substring(0, s.length() - 1)) << shift;
+	}
+
+	public static void main(String[] args) {
+		long seed = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int records = Integer.MAX_VALUE - 1;
+		long size = Long.MAX_VALUE;
+		boolean gzip = false;
+		int vocabulary = DEFAULT_VOCABULARY_SIZE;
+		int hosts = 1000;
+		double dup = 0.03, near = 0.03;
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("-"); i++) {
+				if (args[i].equals("-seed"))
+					seed = Long.parseLong(args[++i]);
+				else if (args[i].equals("-threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-records"))
+					records = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-size"))
+					size = parseSize(args[++i]);
+				else if (args[i].equals("-gzip"))
+					gzip = true;
+				else if (args[i].equals("-vocabulary"))
+					vocabulary = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-hosts"))
+					hosts = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-duplicates"))
+					dup = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-nearDuplicates"))
+					near = Double.parseDouble(args[++i]);
+				else
+					throw new IllegalArgumentException(args[i]);
+			}
+			if (threads < 1 || vocabulary < 1 || hosts < 1 || dup < 0
+					|| near < 0 || dup + near > 1)
+				throw new IllegalArgumentException();
+		} catch (RuntimeException e) {
+			i = -1;
+		}
+		if (i < 0 || args.length - i < 1 || args.length - i > 2
+				|| records == Integer.MAX_VALUE - 1 && size == Long.MAX_VALUE) {
+			System.err.format("Usage: java %s [-seed <n>] [-threads <n>] "
+					+ "(-records <n> | -size <bytes>[k|m|g|t]) [-gzip] "
+					+ "[-vocabulary <words>] [-hosts <n>] "
+					+ "[-duplicates <fraction>] [-nearDuplicates <fraction>] "
+					+ "<dump.arc> [<dump.idx>]\n", ArcGenerator.class.getName());
+			return;
+		}
+		ArcGenerator generator = new ArcGenerator(seed);
+		generator.setThreads(threads);
+		generator.setGzip(gzip);
+		generator.setVocabularySize(vocabulary);
+		generator.setHosts(hosts);
+		generator.setDuplicates(dup, near);
+		try {
+			long start = System.nanoTime();
+			int n = generator.generate(args[i], i + 1 < args.length ? args[i + 1]
+					: null, records, size);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			long bytes = new File(args[i]).length();
+			System.out.format("%d records, %d bytes written to %s in %.1f s "
+					+ "(%.1f MB/s)\n", n, bytes, args[i], seconds, bytes
+					/ seconds / (1 << 20));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,12 +1,28 @@
 package util;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Read an ARC dump file and create an index file.
@@ -18,58 +34,580 @@ import java.text.SimpleDateFormat;
  * ignored. Thus, the first value in the index file indicates the start of the
  * useful data in the ARC dump.
  * 
+ * Compressed dumps (.arc.gz, one gzip member per record) are indexed the same
+ * way, with the offsets of the members in the compressed file.
+ * 
+ * With more than one thread, the dump is cut into byte ranges that are
+ * scanned in parallel, each from the first record header found in it. The
+ * ranges are then stitched in order: a range whose first record does not
+ * start where the previous one stopped is scanned again from there, so the
+ * index is always the same as the one built by a single thread. Compressed
+ * dumps are always indexed by a single thread.
+ * 
+ * Optionally, a URL index (see UrlIndex) and a record metadata sidecar (see
+ * RecordMetadata) are written next to the index, from the same scan.
+ * 
+ * Plain indexes (without URL index or metadata) can be extended: in append
+ * mode, the last entry of the existing index is checked against the dump,
+ * and only the records that follow it are indexed. While building, the index
+ * is synced to disk and a checkpoint (CHECKPOINT_SUFFIX) recording how many
+ * entries are safely written is updated every CHECKPOINT_INTERVAL records, so
+ * an interrupted build is resumed in append mode instead of started over.
+ * 
  */
 public class ArcIndexBuilder {
 
 	public static final int MAX_HEADER_LINE_SIZE = 1024;
 	public static final SimpleDateFormat dateFormat = new SimpleDateFormat(
 			"yyyy-MM-dd HH:mm:ss");
+	static {
+		// Archive dates are in GMT
+		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
 
-	public static void main(String[] args) {
-		if (args.length != 2) {
-			System.err.format("Usage: java %s <dump.arc> <dump.idx>\n",
-					ArcIndexBuilder.class.getName());
-			return;
+	/** Number of ranges per thread, to balance uneven ranges. */
+	public static final int RANGES_PER_THREAD = 4;
+	/** Ranges are not cut smaller than this. */
+	public static final long MIN_RANGE_SIZE = 16 << 20;
+
+	public static final String CHECKPOINT_SUFFIX = ".ckpt";
+	/** Number of records between two checkpoints. */
+	public static final int CHECKPOINT_INTERVAL = 1 << 16;
+
+	private String arcFile;
+	private String idxFile;
+	private int threads = 1;
+	private boolean verbose = false;
+	private int compactInterval = 0;
+	private boolean urlIndex = false;
+	private boolean metadata = false;
+	private boolean append = false;
+
+	public ArcIndexBuilder(String arcFile, String idxFile) {
+		this.arcFile = arcFile;
+		this.idxFile = idxFile;
+	}
+
+	/**
+	 * Set the number of threads scanning the dump (default 1).
+	 * 
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Print one line per record on the standard output (default false).
+	 * 
+	 * @param verbose
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Write the index in the compact format (see CompactIndex), with one
+	 * absolute offset every interval records. 0 (the default) writes the
+	 * plain format.
+	 * 
+	 * @param interval
+	 */
+	public void setCompact(int interval) {
+		this.compactInterval = interval;
+	}
+
+	/**
+	 * Also write a URL index (see UrlIndex) next to the index (default false).
+	 * 
+	 * @param urlIndex
+	 */
+	public void setUrlIndex(boolean urlIndex) {
+		this.urlIndex = urlIndex;
+	}
+
+	/**
+	 * Also write a record metadata sidecar (see RecordMetadata) next to the
+	 * index (default false).
+	 * 
+	 * @param metadata
+	 */
+	public void setMetadata(boolean metadata) {
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Append to the existing index (or resume an interrupted build) instead
+	 * of overwriting it (default false). Only for plain indexes, without URL
+	 * index or metadata. If there is no index yet, it is built from scratch.
+	 * 
+	 * @param append
+	 */
+	public void setAppend(boolean append) {
+		this.append = append;
+	}
+
+	/**
+	 * Build the index.
+	 * 
+	 * @return the number of records (not counting the first one)
+	 * @throws IOException
+	 *             also if, in append mode, the existing index does not match
+	 *             the dump
+	 * @throws ParseException
+	 *             if a record header is malformed
+	 * @throws IllegalStateException
+	 *             if append mode is combined with another format than the
+	 *             plain index
+	 */
+	public int build() throws IOException, ParseException {
+		if (append && (compactInterval > 0 || urlIndex || metadata))
+			throw new IllegalStateException("Append mode only supports the "
+					+ "plain index, without URL index or metadata");
+		File checkpoint = new File(idxFile + CHECKPOINT_SUFFIX);
+		RandomAccessFile arc = new RandomAccessFile(arcFile, "r");
+		IndexWriter writer = null;
+		try {
+			FileChannel channel = arc.getChannel();
+			boolean gzip = GzipMember.isGzip(channel);
+			long start = 0;
+			int entries = 0;
+			if (append) {
+				long[] resumed = resume(channel, gzip, checkpoint);
+				entries = (int) resumed[0];
+				start = resumed[1];
+			} else
+				checkpoint.delete();
+			writer = new IndexWriter(entries);
+			if (gzip) {
+				if (threads > 1)
+					System.err.println("Warning: compressed dumps are "
+							+ "indexed by a single thread");
+				GzipArcScanner scanner = new GzipArcScanner(channel);
+				long stop = scanner.scan(start, scanner.getFileSize(), writer);
+				if (scanner.isTruncated())
+					warnTruncated(writer.id + 1, stop);
+			} else if (threads <= 1) {
+				ArcScanner scanner = new ArcScanner(channel);
+				long stop = scanner.scan(start, scanner.getFileSize(), writer);
+				if (scanner.isTruncated())
+					warnTruncated(writer.id + 1, stop);
+			} else
+				buildParallel(channel, writer, start);
+			if (writer.urls != null)
+				writer.urls.write(idxFile + UrlIndex.SUFFIX);
+			writer.close();
+			checkpoint.delete();
+		} finally {
+			if (writer != null)
+				writer.close();
+			arc.close();
+		}
+		return writer.id;
+	}
+
+	/**
+	 * Get the existing index ready for appending: drop the entries written
+	 * after the last checkpoint (they may be incomplete), and check that the
+	 * last remaining entry is the end of a record of the dump.
+	 * 
+	 * @return the number of entries kept, and the offset where the next
+	 *         record starts
+	 */
+	private long[] resume(FileChannel channel, boolean gzip, File checkpoint)
+			throws IOException, ParseException {
+		File idx = new File(idxFile);
+		if (!idx.exists())
+			return new long[] { 0, 0 };
+		long entries = idx.length() / 8;
+		if (checkpoint.exists()) {
+			DataInputStream in = new DataInputStream(new FileInputStream(
+					checkpoint));
+			try {
+				entries = Math.min(entries, in.readLong());
+			} finally {
+				in.close();
+			}
+		}
+		long start = 0, end = 0;
+		RandomAccessFile index = new RandomAccessFile(idx, "rw");
+		try {
+			if (entries > 0 && index.readLong() == CompactIndex.MAGIC)
+				throw new IOException("Cannot append to a compact index: "
+						+ idxFile);
+			index.setLength(entries * 8);
+			if (entries > 1) {
+				index.seek((entries - 2) * 8);
+				start = index.readLong();
+			}
+			if (entries > 0) {
+				index.seek((entries - 1) * 8);
+				end = index.readLong();
+			}
+		} finally {
+			index.close();
+		}
+		if (entries > 0 && recordEnd(channel, gzip, start) != end)
+			throw new IOException(String.format(
+					"Index %s does not match the dump: no record ends at "
+							+ "offset %d", idxFile, end));
+		return new long[] { entries, end };
+	}
+
+	/**
+	 * Get the end of the record starting at offset, or -1 if there is no
+	 * valid record there.
+	 */
+	private static long recordEnd(FileChannel channel, boolean gzip,
+			long offset) throws IOException {
+		final long[] end = { -1 };
+		ArcScanner.Handler handler = (o, e, header) -> end[0] = e;
+		try {
+			if (gzip)
+				new GzipArcScanner(channel).scan(offset, offset + 1, handler);
+			else
+				new ArcScanner(channel).scan(offset, offset + 1, handler);
+		} catch (ParseException e) {
+			return -1;
 		}
+		return end[0];
+	}
+
+	private void buildParallel(FileChannel channel, IndexWriter writer,
+			long from) throws IOException, ParseException {
+		long size = channel.size() - from;
+		int numRanges = (int) Math.max(1, Math.min(threads
+				* RANGES_PER_THREAD, size / MIN_RANGE_SIZE));
+		long[] bounds = new long[numRanges + 1];
+		for (int i = 0; i <= numRanges; i++)
+			bounds[i] = from + size / numRanges * i + size % numRanges * i
+					/ numRanges;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
 		try {
-			InputStream in = new BufferedInputStream(new FileInputStream(
-					args[0]));
-			DataOutputStream out = new DataOutputStream(
-					new BufferedOutputStream(new FileOutputStream(args[1])));
-			byte[] buf = new byte[MAX_HEADER_LINE_SIZE];
-			int id = -1; // We don't count first record
-			long offset = 0;
-			while (true) {
-				// Read record header (terminated by newline)
-				int n = 0, tmp;
-				while ((tmp = in.read()) != -1 && tmp != '\n')
-					buf[n++] = (byte) tmp;
-				if (tmp == -1) {
-					if (n != 0)
-						System.err.format("Warning: "
-								+ "Incomplete header for file %d, offset=%d\n",
-								id, offset);
+			List<Future<RangeScan>> scans = new ArrayList<Future<RangeScan>>();
+			for (int i = 0; i < numRanges; i++)
+				scans.add(pool.submit(new RangeScan(channel, bounds[i],
+						bounds[i + 1], i > 0)));
+
+			long expected = from; // where the next record starts
+			for (int i = 0; i < numRanges; i++) {
+				RangeScan scan = getResult(scans.get(i));
+				if (expected >= bounds[i + 1])
+					continue; // Range covered by the previous record
+				if (scan.start != expected) {
+					// Wrong or missed synchronization: rescan from the
+					// actual record boundary
+					scan = new RangeScan(channel, expected, bounds[i + 1],
+							false).call();
+				}
+				if (scan.error instanceof ParseException)
+					throw (ParseException) scan.error;
+				if (scan.error != null)
+					throw (IOException) scan.error;
+				for (int j = 0; j < scan.count; j++) {
+					if (scan.statuses != null)
+						writer.writeMetadata(scan.typeNames
+								.get(scan.types[j]), scan.times[j],
+								scan.statuses[j], scan.hosts[j]);
+					writer.write(scan.ends[j],
+							scan.fingerprints != null ? scan.fingerprints[j] : 0);
+					if (verbose)
+						System.out.format("File %6d: %s\n", writer.id,
+								scan.log.get(j));
+				}
+				expected = scan.stop;
+				if (scan.truncated) {
+					warnTruncated(writer.id + 1, scan.stop);
 					break;
 				}
-				ArcRecord rec = ArcRecord.parseArcRecord(new String(buf, 0, n));
-				long length = rec.getLength();
-				System.out.format("File %6d: offset=%08x size=%08x "
-						+ "ip=%-15s date=%s mime=%s url=%s\n", id, offset,
-						length, rec.getIpAddress(), dateFormat.format(rec
-								.getArchiveDate()), rec.getContentType(), rec
-								.getUrl());
-				// Skip length + 1 bytes (records are followed by one newline)
-				for (long total = 0, skipped; total < length + 1; total += skipped)
-					skipped = in.skip(length + 1 - total);
-				id++;
-				offset += n + 1; // Record header and newline
-				offset += length + 1; // Record data and newline
-				out.writeLong(offset);
 			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static RangeScan getResult(Future<RangeScan> future)
+			throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while building the index");
+		} catch (ExecutionException e) {
+			throw new IOException("Range scan failed: " + e.getCause());
+		}
+	}
+
+	private static void warnTruncated(int id, long offset) {
+		System.err.format("Warning: Incomplete record %d, offset=%d\n", id,
+				offset);
+	}
+
+	private static String describe(long offset, long end, ArcRecord rec,
+			SimpleDateFormat format) {
+		return String.format("offset=%08x size=%08x "
+				+ "ip=%-15s date=%s mime=%s url=%s", offset, end - offset,
+				rec.getIpAddress(), format.format(rec.getArchiveDate()), rec
+						.getContentType(), rec.getUrl());
+	}
+
+	/**
+	 * Writes the index entries of a sequential scan, or the stitched entries
+	 * of a parallel one.
+	 */
+	private class IndexWriter implements ArcScanner.Handler {
+		FileOutputStream file;
+		DataOutputStream out;
+		CompactIndex.Writer compact;
+		UrlIndex.Builder urls;
+		RecordMetadata.Writer meta;
+		int id = -1; // We don't count first record
+		long lastEnd;
+		boolean checkpoints;
+		boolean closed;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param entries
+		 *            number of entries already in the index, to append to
+		 */
+		IndexWriter(int entries) throws IOException {
+			if (compactInterval > 0)
+				compact = new CompactIndex.Writer(idxFile, compactInterval);
+			else {
+				file = new FileOutputStream(idxFile, entries > 0);
+				out = new DataOutputStream(new BufferedOutputStream(file,
+						1 << 16));
+				// The other outputs are only written at the end
+				checkpoints = !urlIndex && !metadata;
+			}
+			if (urlIndex)
+				urls = new UrlIndex.Builder();
+			if (metadata)
+				meta = new RecordMetadata.Writer(idxFile + RecordMetadata.SUFFIX);
+			id = entries - 1;
+		}
+
+		/**
+		 * Add the metadata of the next record (before write).
+		 */
+		void writeMetadata(String contentType, long archiveTime,
+				int statusCode, int hostHash) throws IOException {
+			if (meta != null && id >= 0)
+				meta.add(contentType, archiveTime, statusCode, hostHash);
+		}
+
+		void write(long end, long urlFingerprint) throws IOException {
+			if (compact != null)
+				compact.write(end);
+			else
+				out.writeLong(end);
+			if (urls != null && id >= 0)
+				urls.add(urlFingerprint, id);
+			id++;
+			lastEnd = end;
+			if (checkpoints && (id + 1) % CHECKPOINT_INTERVAL == 0)
+				checkpoint();
+		}
+
+		/**
+		 * Sync the index to disk, then record how many entries it holds.
+		 */
+		void checkpoint() throws IOException {
+			out.flush();
+			file.getFD().sync();
+			File tmp = new File(idxFile + CHECKPOINT_SUFFIX + ".tmp");
+			DataOutputStream ckpt = new DataOutputStream(new FileOutputStream(
+					tmp));
+			try {
+				ckpt.writeLong(id + 1);
+				ckpt.writeLong(lastEnd);
+			} finally {
+				ckpt.close();
+			}
+			Files.move(tmp.toPath(), new File(idxFile + CHECKPOINT_SUFFIX)
+					.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			if (compact != null)
+				compact.close();
+			else
+				out.close();
+			if (meta != null)
+				meta.close();
+		}
+
+		@Override
+		public void record(long offset, long end, ArcRecord header)
+				throws IOException {
+			if (meta != null)
+				writeMetadata(header.getContentType(), header.getArchiveTime(),
+						HttpReply.peekStatusCode(header.peekData()), header
+								.getHostHash());
+			write(end, urls != null ? header.getUrlFingerprint()
+					: 0);
+			if (verbose)
+				System.out.format("File %6d: %s\n", id, describe(offset, end,
+						header, dateFormat));
+		}
+	}
+
+	/**
+	 * Scans the records starting in one byte range of the dump and keeps
+	 * their end offsets (and URL fingerprints, metadata) in memory until the
+	 * range is stitched. Content types are numbered within the range.
+	 */
+	private class RangeScan implements Callable<RangeScan>, ArcScanner.Handler {
+		final FileChannel channel;
+		final long from, limit;
+		final boolean synchronize;
+		final List<String> log;
+		final SimpleDateFormat format;
+		long start = -1, stop;
+		long[] ends = new long[1024];
+		long[] fingerprints = urlIndex ? new long[1024] : null;
+		int[] types, statuses, hosts;
+		long[] times;
+		List<String> typeNames;
+		Map<String, Integer> typeIds;
+		int count;
+		boolean truncated;
+		Exception error;
+
+		RangeScan(FileChannel channel, long from, long limit,
+				boolean synchronize) {
+			this.channel = channel;
+			this.from = from;
+			this.limit = limit;
+			this.synchronize = synchronize;
+			this.log = verbose ? new ArrayList<String>() : null;
+			this.format = verbose ? (SimpleDateFormat) dateFormat.clone()
+					: null;
+			if (metadata) {
+				types = new int[1024];
+				statuses = new int[1024];
+				hosts = new int[1024];
+				times = new long[1024];
+				typeNames = new ArrayList<String>();
+				typeIds = new HashMap<String, Integer>();
+			}
+		}
+
+		@Override
+		public RangeScan call() {
+			try {
+				ArcScanner scanner = new ArcScanner(channel);
+				start = synchronize ? scanner.findRecordStart(from, limit)
+						: from;
+				if (start >= 0) {
+					stop = scanner.scan(start, limit, this);
+					truncated = scanner.isTruncated();
+				}
+			} catch (Exception e) {
+				error = e;
+			}
+			return this;
+		}
+
+		@Override
+		public void record(long offset, long end, ArcRecord header) {
+			if (count == ends.length) {
+				ends = grow(ends);
+				if (fingerprints != null)
+					fingerprints = grow(fingerprints);
+				if (statuses != null) {
+					types = grow(types);
+					statuses = grow(statuses);
+					hosts = grow(hosts);
+					times = grow(times);
+				}
+			}
+			if (fingerprints != null)
+				fingerprints[count] = header.getUrlFingerprint();
+			if (statuses != null) {
+				String type = header.getContentType();
+				Integer typeId = typeIds.get(type);
+				if (typeId == null) {
+					typeId = typeNames.size();
+					typeNames.add(type);
+					typeIds.put(type, typeId);
+				}
+				types[count] = typeId;
+				statuses[count] = HttpReply.peekStatusCode(header.peekData());
+				hosts[count] = header.getHostHash();
+				times[count] = header.getArchiveTime();
+			}
+			ends[count++] = end;
+			if (log != null)
+				log.add(describe(offset, end, header, format));
+		}
+	}
+
+	private static long[] grow(long[] a) {
+		long[] tmp = new long[a.length * 2];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+
+	private static int[] grow(int[] a) {
+		int[] tmp = new int[a.length * 2];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+
+	public static void main(String[] args) {
+		ArcIndexBuilder builder;
+		int i = 0;
+		int threads = 1;
+		boolean verbose = false;
+		int compact = 0;
+		boolean urls = false;
+		boolean meta = false;
+		boolean append = false;
+		try {
+			for (; i < args.length && args[i].startsWith("-"); i++) {
+				if (args[i].equals("-threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-verbose"))
+					verbose = true;
+				else if (args[i].equals("-compact"))
+					compact = CompactIndex.DEFAULT_INTERVAL;
+				else if (args[i].equals("-urls"))
+					urls = true;
+				else if (args[i].equals("-meta"))
+					meta = true;
+				else if (args[i].equals("-append"))
+					append = true;
+				else
+					throw new IllegalArgumentException(args[i]);
+			}
+		} catch (RuntimeException e) {
+			i = -1;
+		}
+		if (i < 0 || args.length - i != 2) {
+			System.err.format("Usage: java %s [-threads <n>] [-verbose] "
+					+ "[-compact] [-urls] [-meta] [-append] "
+					+ "<dump.arc> <dump.idx>\n",
+					ArcIndexBuilder.class.getName());
+			return;
+		}
+		builder = new ArcIndexBuilder(args[i], args[i + 1]);
+		builder.setThreads(threads);
+		builder.setVerbose(verbose);
+		builder.setCompact(compact);
+		builder.setUrlIndex(urls);
+		builder.setMetadata(meta);
+		builder.setAppend(append);
+		try {
+			int n = builder.build();
 			System.out.format("Success! Index written to %s (%d records).\n",
-					args[1], id);
-			in.close();
-			out.close();
+					args[i + 1], n);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -1,35 +1,76 @@
 package util;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 /**
  * Read an ARC index file built by ArcIndexBuilder and answer queries.
  * 
+ * The index file is memory-mapped rather than loaded, so opening it takes
+ * constant time, uses no heap, and its pages are shared by all the processes
+ * reading the same index. Both the plain format (see ArcIndexBuilder) and
+ * the compact one (see CompactIndex) are supported.
+ * 
  */
 public class ArcIndexReader {
 
-	private long[] buffer;
+	private MappedFile plain; // null for a compact index
+	private CompactIndex compact;
+	private int numRecords;
 
 	/**
-	 * Constructor. Reads the ARC index file in memory.
+	 * Constructor. Maps the ARC index file in memory.
 	 * 
 	 * @param idxFile
 	 * @throws IOException
 	 */
 	public ArcIndexReader(String idxFile) throws IOException {
-		File f = new File(idxFile);
-		DataInputStream in = new DataInputStream(new BufferedInputStream(
-				new FileInputStream(f)));
-		long fileSize = f.length();
-		int numFiles = (int) (fileSize / 8);
-		buffer = new long[numFiles];
-		for (int i = 0; i < numFiles; i++)
-			buffer[i] = in.readLong();
-		in.close();
+		MappedFile file = new MappedFile(idxFile);
+		long numEntries;
+		if (CompactIndex.isCompact(file)) {
+			compact = new CompactIndex(file);
+			numEntries = compact.size();
+		} else {
+			plain = file;
+			numEntries = file.size() / 8;
+		}
+		if (numEntries - 1 > Integer.MAX_VALUE)
+			throw new IOException("Too many records in " + idxFile);
+		numRecords = (int) (numEntries - 1);
+	}
+
+	/**
+	 * Get the number of records of an index without mapping it (only its
+	 * first and last bytes are read).
+	 * 
+	 * @param idxFile
+	 * @return the same as getNumRecords
+	 * @throws IOException
+	 */
+	public static int countRecords(String idxFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(idxFile, "r");
+		try {
+			long size = file.length();
+			long numEntries = size / 8;
+			if (size >= 8 && file.readLong() == CompactIndex.MAGIC) {
+				file.seek(size - 16);
+				numEntries = file.readLong();
+			}
+			if (numEntries - 1 > Integer.MAX_VALUE)
+				throw new IOException("Too many records in " + idxFile);
+			return (int) Math.max(0, numEntries - 1);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Is the index in the compact format?
+	 * 
+	 * @return
+	 */
+	public boolean isCompact() {
+		return compact != null;
 	}
 
 	/**
@@ -39,7 +80,7 @@ public class ArcIndexReader {
 	 * @return
 	 */
 	public int getNumRecords() {
-		return buffer.length - 1;
+		return numRecords;
 	}
 
 	/**
@@ -50,7 +91,9 @@ public class ArcIndexReader {
 	 * @return
 	 */
 	public long getRecordOffset(int id) {
-		return buffer[id];
+		if (id < 0 || id > numRecords)
+			throw new IndexOutOfBoundsException("No record " + id);
+		return compact != null ? compact.get(id) : plain.getLong(8L * id);
 	}
 
 	/**
@@ -59,8 +102,12 @@ public class ArcIndexReader {
 	 * @param id
 	 * @return
 	 */
-	public int getRecordSize(int id) {
-		return (int) (buffer[id + 1] - buffer[id]);
+	public long getRecordSize(int id) {
+		if (id < 0 || id >= numRecords)
+			throw new IndexOutOfBoundsException("No record " + id);
+		if (compact != null)
+			return compact.delta(id + 1);
+		return plain.getLong(8L * id + 8) - plain.getLong(8L * id);
 	}
 
 	/**
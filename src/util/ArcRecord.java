@@ -1,75 +1,332 @@
 package util;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.StringTokenizer;
 
+/**
+ * An ARC record: header fields (url, ip address, archive date, content type,
+ * length) and data.
+ * 
+ * Headers are parsed in place from the bytes of the header line: parsing
+ * only checks the syntax and records where each field is, and the url, ip
+ * address, date and content type are decoded the first time they are asked
+ * for. Header bytes are decoded as ISO-8859-1 (one char per byte). Archive
+ * dates are in GMT, as the ARC format specifies.
+ * 
+ */
 public class ArcRecord {
 
+	/**
+	 * @deprecated not thread-safe, and no longer used for parsing.
+	 */
+	@Deprecated
 	public static final SimpleDateFormat dateFormat = new SimpleDateFormat(
 			"yyyyMMddHHmmss");
 
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final long NO_TIME = Long.MIN_VALUE;
+
+	// Header line this record was parsed from, null if built from values
+	private ByteBuffer header;
+	private int urlStart, urlEnd, ipStart, ipEnd, dateStart, typeStart,
+			typeEnd;
+	// Beginning of the data in the header buffer, for scanners
+	private int peekStart, peekEnd;
+
 	private String url;
 	private String ipAddress;
-	private Date archiveDate;
+	private long archiveTime = NO_TIME;
 	private String contentType;
-	private int length;
+	private long length;
 	private byte[] data;
+	// Data of a record read from a dump, copied to data only on demand
+	private ByteBuffer dataBuffer;
+	private int id = -1;
 
 	public ArcRecord(String url, String ipAddress, Date archiveDate,
-			String contentType, int length) {
+			String contentType, long length) {
 		this.url = url;
 		this.ipAddress = ipAddress;
-		this.archiveDate = archiveDate;
+		this.archiveTime = archiveDate.getTime();
 		this.contentType = contentType;
 		this.length = length;
 	}
 
+	private ArcRecord(ByteBuffer header) {
+		this.header = header;
+	}
+
 	public String getUrl() {
+		if (url == null)
+			url = decode(urlStart, urlEnd);
 		return url;
 	}
 
 	public String getIpAddress() {
+		if (ipAddress == null)
+			ipAddress = decode(ipStart, ipEnd);
 		return ipAddress;
 	}
 
 	public Date getArchiveDate() {
-		return archiveDate;
+		return new Date(getArchiveTime());
+	}
+
+	/**
+	 * Get the archive date, in milliseconds since the epoch.
+	 * 
+	 * @return
+	 */
+	public long getArchiveTime() {
+		if (archiveTime == NO_TIME) {
+			int p = dateStart;
+			ByteBuffer h = header;
+			archiveTime = toEpochMillis(digits(h, p, 4), digits(h, p + 4, 2),
+					digits(h, p + 6, 2), digits(h, p + 8, 2), digits(h,
+							p + 10, 2), digits(h, p + 12, 2));
+		}
+		return archiveTime;
 	}
 
 	public String getContentType() {
+		if (contentType == null)
+			contentType = decode(typeStart, typeEnd);
 		return contentType;
 	}
 
-	public int getLength() {
+	/**
+	 * Get the length of the record data, as declared in the header.
+	 * 
+	 * @return
+	 */
+	public long getLength() {
 		return length;
 	}
 
+	/**
+	 * 64-bit fingerprint of the url (see UrlIndex), computed from the header
+	 * bytes without decoding the url.
+	 */
+	long getUrlFingerprint() {
+		if (header == null)
+			return UrlIndex.fingerprint(url);
+		return UrlIndex.fingerprint(header, urlStart, urlEnd);
+	}
+
+	/**
+	 * Hash of the host of the url (see RecordMetadata), computed from the
+	 * header bytes without decoding the url.
+	 */
+	int getHostHash() {
+		if (header == null)
+			return RecordMetadata.urlHostHash(url);
+		return RecordMetadata.urlHostHash(header, urlStart, urlEnd);
+	}
+
+	/**
+	 * Get the id of the record in its dump, or -1 if unknown.
+	 * 
+	 * @return
+	 */
+	public int getId() {
+		return id;
+	}
+
+	void setId(int id) {
+		this.id = id;
+	}
+
 	public byte[] getData() {
+		if (data == null && dataBuffer != null) {
+			byte[] copy = new byte[dataBuffer.remaining()];
+			dataBuffer.duplicate().get(copy);
+			data = copy;
+		}
 		return data;
 	}
 
+	/**
+	 * Get the record data without copying it.
+	 * 
+	 * @return a read-only buffer, or null if the record has no data
+	 */
+	public ByteBuffer getDataBuffer() {
+		if (dataBuffer != null)
+			return dataBuffer.duplicate();
+		return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get the beginning of the record data, as far as it was in the scanner's
+	 * buffer along with the header. Only for headers given to an
+	 * ArcScanner.Handler, and only valid during the call.
+	 * 
+	 * @return a read-only view, possibly empty
+	 */
+	ByteBuffer peekData() {
+		ByteBuffer peek = header.duplicate();
+		peek.limit(peekEnd).position(peekStart);
+		return peek.asReadOnlyBuffer();
+	}
+
+	void setPeekData(int start, int end) {
+		peekStart = start;
+		peekEnd = Math.max(start, end);
+	}
+
 	void setData(byte[] data) {
 		this.data = data;
 	}
 
+	private String decode(int start, int end) {
+		byte[] b = new byte[end - start];
+		for (int i = 0; i < b.length; i++)
+			b[i] = header.get(start + i);
+		return new String(b, LATIN1);
+	}
+
+	private static int digits(ByteBuffer b, int start, int n) {
+		int value = 0;
+		for (int i = start; i < start + n; i++)
+			value = value * 10 + b.get(i) - '0';
+		return value;
+	}
+
+	/**
+	 * Convert a GMT date to milliseconds since the epoch (proleptic
+	 * Gregorian calendar).
+	 */
+	static long toEpochMillis(int year, int month, int day, int hour,
+			int minute, int second) {
+		// Days since 1970-01-01, counting years from March
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		long days = era * 146097L + dayOfEra - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+	}
+
+	/**
+	 * Parse the header line held in buf[start, end) (without the newline).
+	 * The record keeps a reference to buf and decodes its fields from it on
+	 * demand, so buf must not be modified while the record is in use.
+	 * 
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws ParseException
+	 *             if the line is not a valid header
+	 */
+	public static ArcRecord parseArcRecord(ByteBuffer buf, int start, int end)
+			throws ParseException {
+		ArcRecord rec = new ArcRecord(buf);
+		int field = 0, i = start;
+		while (field < 5) {
+			while (i < end && buf.get(i) == ' ')
+				i++;
+			if (i == end)
+				throw new ParseException("Missing header field", i - start);
+			int s = i;
+			while (i < end && buf.get(i) != ' ')
+				i++;
+			switch (field++) {
+			case 0:
+				rec.urlStart = s;
+				rec.urlEnd = i;
+				break;
+			case 1:
+				rec.ipStart = s;
+				rec.ipEnd = i;
+				break;
+			case 2:
+				rec.dateStart = s;
+				checkDate(buf, s, i, start);
+				break;
+			case 3:
+				rec.typeStart = s;
+				rec.typeEnd = i;
+				break;
+			case 4:
+				rec.length = parseLength(buf, s, i, start);
+				break;
+			}
+		}
+		return rec;
+	}
+
+	private static void checkDate(ByteBuffer buf, int s, int e, int start)
+			throws ParseException {
+		boolean valid = e - s == 14;
+		for (int i = s; valid && i < e; i++)
+			valid = buf.get(i) >= '0' && buf.get(i) <= '9';
+		if (valid) {
+			int month = digits(buf, s + 4, 2), day = digits(buf, s + 6, 2);
+			valid = month >= 1 && month <= 12 && day >= 1 && day <= 31
+					&& digits(buf, s + 8, 2) < 24
+					&& digits(buf, s + 10, 2) < 60
+					&& digits(buf, s + 12, 2) <= 60;
+		}
+		if (!valid)
+			throw new ParseException("Invalid archive date", s - start);
+	}
+
+	private static long parseLength(ByteBuffer buf, int s, int e, int start)
+			throws ParseException {
+		long length = 0;
+		if (e - s > 18)
+			throw new ParseException("Invalid record length", s - start);
+		for (int i = s; i < e; i++) {
+			int d = buf.get(i) - '0';
+			if (d < 0 || d > 9)
+				throw new ParseException("Invalid record length", s - start);
+			length = length * 10 + d;
+		}
+		return length;
+	}
+
 	public static ArcRecord parseArcRecord(String urlRecord)
 			throws ParseException {
-		StringTokenizer tokens = new StringTokenizer(urlRecord, " ");
-		String url = tokens.nextToken();
-		String ipAddress = tokens.nextToken();
-		Date archiveDate = dateFormat.parse(tokens.nextToken());
-		String contentType = tokens.nextToken();
-		int length = Integer.parseInt(tokens.nextToken());
-		return new ArcRecord(url, ipAddress, archiveDate, contentType, length);
+		byte[] b = urlRecord.getBytes(LATIN1);
+		return parseArcRecord(ByteBuffer.wrap(b), 0, b.length);
+	}
+
+	/**
+	 * Parse a raw record, as returned by ArcRecordReader.getRecord. The data
+	 * of the result is a view of rawData, which is not copied.
+	 * 
+	 * @param rawData
+	 * @return
+	 * @throws ParseException
+	 */
+	public static ArcRecord parseArcRecord(ByteBuffer rawData)
+			throws ParseException {
+		int start = rawData.position(), end = rawData.limit(), i;
+		for (i = start; i < end && rawData.get(i) != '\n'; i++)
+			;
+		if (i == end)
+			throw new ParseException("No header line", 0);
+		ArcRecord rec = parseArcRecord(rawData, start, i);
+		if (rec.length > end - i - 1)
+			throw new ParseException("Record data is truncated", i + 1);
+		ByteBuffer data = rawData.duplicate();
+		data.limit(i + 1 + (int) rec.length).position(i + 1);
+		rec.dataBuffer = data.slice().asReadOnlyBuffer();
+		return rec;
 	}
 
 	public static ArcRecord parseArcRecord(byte[] rawData)
 			throws ParseException {
 		int i, n = rawData.length;
-		for (i = 0; i < n && rawData[i] != '\n'; i++) ;
-		return ArcRecord.parseArcRecord(new String(rawData, 0, n));
+		for (i = 0; i < n && rawData[i] != '\n'; i++)
+			;
+		return parseArcRecord(ByteBuffer.wrap(rawData), 0, i);
 	}
 
 }
@@ -0,0 +1,86 @@
+package util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a sorted list of record ids, typically selected through
+ * RecordMetadata. Records are fetched BATCH_SIZE at a time with
+ * ArcRecordReader.getRecords, so only the selected records are read, with the
+ * reads of nearby ones merged.
+ * 
+ */
+final class ArcRecordIdSpliterator implements Spliterator<ArcRecord> {
+
+	static final int BATCH_SIZE = 256;
+
+	private final ArcRecordReader reader;
+	private final int[] ids;
+	private int next; // next position in ids
+	private final int end;
+
+	// Records of ids[batchStart, batchStart + batch.length)
+	private ByteBuffer[] batch;
+	private int batchStart;
+
+	ArcRecordIdSpliterator(ArcRecordReader reader, int[] ids, int start,
+			int end) {
+		this.reader = reader;
+		this.ids = ids;
+		this.next = start;
+		this.end = end;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super ArcRecord> action) {
+		if (next >= end)
+			return false;
+		ArcRecord rec;
+		try {
+			if (batch == null || next >= batchStart + batch.length) {
+				int n = Math.min(BATCH_SIZE, end - next);
+				int[] batchIds = new int[n];
+				System.arraycopy(ids, next, batchIds, 0, n);
+				batch = reader.getRecords(batchIds);
+				batchStart = next;
+			}
+			rec = ArcRecordReader.parse(ids[next], batch[next - batchStart]);
+			batch[next - batchStart] = null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		next++;
+		action.accept(rec);
+		return true;
+	}
+
+	@Override
+	public Spliterator<ArcRecord> trySplit() {
+		// Records of the current batch stay here
+		int start = batch == null ? next : Math.max(next, batchStart
+				+ batch.length);
+		if (end - start < 2 * BATCH_SIZE)
+			return null;
+		int middle = start + (end - start) / 2;
+		ArcRecordIdSpliterator prefix = new ArcRecordIdSpliterator(reader, ids,
+				next, middle);
+		prefix.batch = batch;
+		prefix.batchStart = batchStart;
+		next = middle;
+		batch = null;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return end - next;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL | IMMUTABLE | SIZED | SUBSIZED | DISTINCT;
+	}
+}
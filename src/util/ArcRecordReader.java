@@ -1,22 +1,718 @@
 package util;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * Random access to the records of an ARC dump, through the index built by
+ * ArcIndexBuilder.
+ * 
+ * A reader can be shared by any number of threads. Records are returned as
+ * read-only buffers: in mapped mode they are slices of the memory-mapped dump
+ * (no lock, no copy), otherwise they are filled by a positioned read on the
+ * file channel, which does not move any shared file pointer.
+ * 
+ * Compressed dumps (.arc.gz, indexed by ArcIndexBuilder) are supported too:
+ * only the gzip member of the requested record is read and inflated, and the
+ * records are returned uncompressed (never as slices of the mapping).
+ * 
+ * Block-compressed dumps (see BlockDump) are detected too, and read through
+ * their cache of decompressed blocks; they are never mapped, and records
+ * within one block are returned as slices of the cached block.
+ * 
+ * An optional RecordCache keeps decoded records in memory, for workloads that
+ * read the same records again and again. It is not used in mapped mode for
+ * uncompressed dumps, where getting a record costs nothing anyway, nor by
+ * the record streams.
+ * 
+ * Many records can be fetched at once with getRecords or getRecordsAsync,
+ * which merge the reads of nearby records and issue them asynchronously (see
+ * BatchFetch).
+ * 
+ * Records larger than 2 GB cannot be returned as buffers: they are read
+ * through openRecord, which streams them (the dump must not be mapped).
+ * 
+ * Filtered streams select records by id, and read only those: the filters
+ * are built from the sidecars of the index, such as its metadata (see
+ * RecordMetadata) or its duplicate map (see DuplicateMap).
+ * 
+ */
 public class ArcRecordReader {
 
+	/**
+	 * Maximum size of one mapped segment. A single mapping cannot exceed 2 GB,
+	 * so larger dumps are mapped as several segments, each starting on a
+	 * record boundary (a record never spans two segments).
+	 */
+	public static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+	private String arcFile;
 	private RandomAccessFile arcDump;
+	private volatile AsynchronousFileChannel asyncChannel; // opened on first use
+	private FileChannel channel;
 	private ArcIndexReader idxReader;
+	private String idxFile;
+	private volatile UrlIndex urlIndex; // opened on first use
+	private volatile RecordMetadata metadata; // opened on first use
+	private volatile DuplicateMap duplicates; // opened on first use
+	private boolean compressed;
+	private BlockDump blocks; // block-compressed dumps only
+	private RecordCache cache;
+	private ReadAhead readAhead;
+
+	// Mapped mode only: first record id of each segment, and the segments
+	private int[] segmentFirstId;
+	private MappedByteBuffer[] segments;
 
+	/**
+	 * Constructor. Records are read with positioned reads on the dump.
+	 * 
+	 * @param arcFile
+	 * @param idxFile
+	 * @throws IOException
+	 */
 	public ArcRecordReader(String arcFile, String idxFile) throws IOException {
+		this(arcFile, idxFile, false);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param arcFile
+	 * @param idxFile
+	 * @param mapped
+	 *            if true, the dump is memory-mapped and records are returned
+	 *            as zero-copy slices of the mapping (ignored for block dumps)
+	 * @throws IOException
+	 */
+	public ArcRecordReader(String arcFile, String idxFile, boolean mapped)
+			throws IOException {
+		this.arcFile = arcFile;
 		arcDump = new RandomAccessFile(arcFile, "r");
+		channel = arcDump.getChannel();
 		idxReader = new ArcIndexReader(idxFile);
+		this.idxFile = idxFile;
+		if (BlockDump.isBlockDump(channel))
+			blocks = new BlockDump(channel);
+		else
+			compressed = GzipMember.isGzip(channel);
+		if (mapped && blocks == null)
+			mapSegments();
+	}
+
+	/**
+	 * Map the dump as a list of segments of at most MAX_SEGMENT_SIZE bytes
+	 * (unless a single record is larger than that), cut at record boundaries.
+	 * 
+	 * @throws IOException
+	 */
+	private void mapSegments() throws IOException {
+		List<Integer> firstIds = new ArrayList<Integer>();
+		List<MappedByteBuffer> maps = new ArrayList<MappedByteBuffer>();
+		int n = idxReader.getNumRecords();
+		int id = 0;
+		while (id < n) {
+			long start = idxReader.getRecordOffset(id);
+			// Find the last record boundary within MAX_SEGMENT_SIZE of start;
+			// getRecordOffset(k) is also the end of record k - 1.
+			int lo = id + 1, hi = n;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (idxReader.getRecordOffset(mid) - start <= MAX_SEGMENT_SIZE)
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			long size = idxReader.getRecordOffset(lo) - start;
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(String.format(
+						"Record %d is too large to be mapped (%d bytes)", id,
+						size));
+			firstIds.add(id);
+			maps.add(channel.map(MapMode.READ_ONLY, start, size));
+			id = lo;
+		}
+		segmentFirstId = new int[firstIds.size()];
+		for (int i = 0; i < segmentFirstId.length; i++)
+			segmentFirstId[i] = firstIds.get(i);
+		segments = maps.toArray(new MappedByteBuffer[maps.size()]);
 	}
 
-	public byte[] getRecord(int id) throws IOException {
-		arcDump.seek(idxReader.getRecordOffset(id));
-		byte[] data = new byte[idxReader.getRecordSize(id)];
-		arcDump.read(data);
+	/**
+	 * Get the number of records in the dump.
+	 * 
+	 * @return
+	 */
+	public int getNumRecords() {
+		return idxReader.getNumRecords();
+	}
+
+	/**
+	 * Get the index of the dump.
+	 * 
+	 * @return
+	 */
+	public ArcIndexReader getIndex() {
+		return idxReader;
+	}
+
+	/**
+	 * Is the dump compressed (one gzip member per record)?
+	 * 
+	 * @return
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Get the block dump, if the dump is block-compressed (for its cache of
+	 * decompressed blocks).
+	 * 
+	 * @return the block dump, or null for the other formats
+	 */
+	public BlockDump getBlockDump() {
+		return blocks;
+	}
+
+	/**
+	 * Set the cache of decoded records (keyed by record id), or null for no
+	 * cache. A cache must not be shared by readers of different dumps. Set it
+	 * before sharing the reader between threads.
+	 * 
+	 * @param cache
+	 */
+	public void setCache(RecordCache cache) {
+		this.cache = cache;
+	}
+
+	public RecordCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Read ahead when records are read in order (see ReadAhead): a background
+	 * thread reads the next window of the dump while the records of the
+	 * current one are processed. Ignored in mapped mode, where the system
+	 * reads ahead, and for block dumps. Set it before sharing the reader
+	 * between threads.
+	 * 
+	 * @param windowSize
+	 *            size of each of the two read-ahead buffers, 0 for no
+	 *            read-ahead (the default)
+	 * @param sequential
+	 *            if true, read ahead from the first read instead of waiting
+	 *            for a few sequential reads
+	 */
+	public void setReadAhead(int windowSize, boolean sequential) {
+		if (readAhead != null)
+			readAhead.close();
+		readAhead = null;
+		if (windowSize > 0 && segments == null && blocks == null)
+			readAhead = new ReadAhead(channel, windowSize, sequential);
+	}
+
+	/**
+	 * Get the read-ahead, and its stall metrics.
+	 * 
+	 * @return null if there is none
+	 */
+	public ReadAhead getReadAhead() {
+		return readAhead;
+	}
+
+	/**
+	 * Is the dump memory-mapped?
+	 * 
+	 * @return
+	 */
+	public boolean isMapped() {
+		return segments != null;
+	}
+
+	/**
+	 * Get the raw bytes of the id-th record (header line, data and trailing
+	 * newline). The returned buffer is read-only and owned by the caller; in
+	 * mapped mode it shares its content with the mapping, unless the dump is
+	 * compressed.
+	 * 
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 *             if the dump is shorter than what the index says
+	 */
+	public ByteBuffer getRecord(int id) throws IOException {
+		RecordCache c = segments != null && !compressed ? null : cache;
+		if (c != null) {
+			ByteBuffer cached = c.get(id);
+			if (cached != null)
+				return cached;
+		}
+		long offset = idxReader.getRecordOffset(id);
+		long size = idxReader.getRecordSize(id);
+		if (size > Integer.MAX_VALUE)
+			throw tooLarge(id, size);
+		ByteBuffer raw = segments != null ? slice(id, offset, (int) size)
+				: readRange(offset, (int) size);
+		ByteBuffer record = decode(raw).asReadOnlyBuffer();
+		if (c != null)
+			c.put(id, record);
+		return record;
+	}
+
+	static IOException tooLarge(int id, long size) {
+		return new IOException(String.format("Record %d is too large to be "
+				+ "held in a buffer (%d bytes): use openRecord", id, size));
+	}
+
+	/**
+	 * Open a channel over the bytes of the id-th record (same bytes as
+	 * getRecord), read as they are consumed. For records of any size.
+	 * 
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	public RecordChannel openRecord(int id) throws IOException {
+		if (blocks != null)
+			return new RecordChannel(blocks, idxReader.getRecordOffset(id),
+					idxReader.getRecordSize(id));
+		return new RecordChannel(channel, idxReader.getRecordOffset(id),
+				idxReader.getRecordSize(id), compressed);
+	}
+
+	/**
+	 * Same as openRecord, as an input stream.
+	 * 
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream openRecordStream(int id) throws IOException {
+		return openRecord(id).asInputStream();
+	}
+
+	/**
+	 * Copy the bytes of the id-th record to a channel, without holding the
+	 * record in memory (see RecordChannel.transferTo).
+	 * 
+	 * @param id
+	 * @param target
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferRecord(int id, WritableByteChannel target)
+			throws IOException {
+		return transferRecord(id, 0, Long.MAX_VALUE, target);
+	}
+
+	/**
+	 * Copy a range of the bytes of the id-th record to a channel. For
+	 * uncompressed dumps, the bytes go from the file to the channel without
+	 * being copied through the heap (sendfile, for a socket). The target
+	 * must be in blocking mode.
+	 * 
+	 * @param id
+	 * @param position
+	 *            first byte of the record to copy
+	 * @param count
+	 *            maximum number of bytes to copy
+	 * @param target
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferRecord(int id, long position, long count,
+			WritableByteChannel target) throws IOException {
+		RecordChannel record = openRecord(id);
+		try {
+			record.skip(position);
+			return record.transferTo(target, count);
+		} finally {
+			record.close();
+		}
+	}
+
+	/**
+	 * Get several records at once (see getRecordsAsync), waiting for all of
+	 * them.
+	 * 
+	 * @param ids
+	 * @return the records, in the order of ids
+	 * @throws IOException
+	 *             if a record cannot be read
+	 */
+	public ByteBuffer[] getRecords(int[] ids) throws IOException {
+		List<CompletableFuture<ByteBuffer>> futures = getRecordsAsync(ids);
+		ByteBuffer[] records = new ByteBuffer[ids.length];
+		for (int i = 0; i < records.length; i++) {
+			try {
+				records[i] = futures.get(i).join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("Cannot read record " + ids[i],
+						e.getCause());
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Start fetching several records. The reads of records that are close to
+	 * each other in the dump are merged, and run asynchronously, a bounded
+	 * number at a time; the calling thread does not wait. In mapped mode, the
+	 * records are taken from the mapping right away, and so are those of a
+	 * block dump, through its block cache.
+	 * 
+	 * @param ids
+	 *            record ids, in any order, possibly repeated
+	 * @return one future per id, in the order of ids, completed with the same
+	 *         buffer as getRecord would return, or with the IOException that
+	 *         it would throw
+	 * @throws IOException
+	 *             if the dump cannot be opened for asynchronous reads
+	 */
+	public List<CompletableFuture<ByteBuffer>> getRecordsAsync(int[] ids)
+			throws IOException {
+		if (segments == null && blocks == null)
+			return BatchFetch.fetch(this, getAsyncChannel(), ids);
+		List<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>(
+				ids.length);
+		for (int id : ids) {
+			CompletableFuture<ByteBuffer> f = new CompletableFuture<ByteBuffer>();
+			try {
+				f.complete(getRecord(id));
+			} catch (IOException e) {
+				f.completeExceptionally(e);
+			}
+			futures.add(f);
+		}
+		return futures;
+	}
+
+	private AsynchronousFileChannel getAsyncChannel() throws IOException {
+		AsynchronousFileChannel c = asyncChannel;
+		if (c == null) {
+			synchronized (this) {
+				if (asyncChannel == null)
+					asyncChannel = AsynchronousFileChannel.open(
+							Paths.get(arcFile), StandardOpenOption.READ);
+				c = asyncChannel;
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Turn the bytes of a record as stored in the dump into the record.
+	 * 
+	 * @param raw
+	 * @return raw itself, or a new buffer if the dump is compressed
+	 * @throws IOException
+	 */
+	ByteBuffer decode(ByteBuffer raw) throws IOException {
+		return compressed ? GzipMember.inflate(raw) : raw;
+	}
+
+	/**
+	 * Get the first record of the dump, which holds meta information about
+	 * the data set and has no id.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	ByteBuffer readMetaRecord() throws IOException {
+		long size = idxReader.getRecordOffset(0);
+		if (size > Integer.MAX_VALUE)
+			throw tooLarge(-1, size);
+		return decode(readRange(0, (int) size));
+	}
+
+	/**
+	 * Read size bytes of the dump at the given offset into a new buffer (a
+	 * read-only one for block dumps).
+	 * 
+	 * @throws EOFException
+	 *             if the dump ends before
+	 */
+	ByteBuffer readRange(long offset, int size) throws IOException {
+		if (blocks != null)
+			return blocks.read(offset, size);
+		if (readAhead != null) {
+			ByteBuffer data = readAhead.read(offset, size);
+			if (data != null)
+				return data;
+		}
+		ByteBuffer data = ByteBuffer.allocate(size);
+		long pos = offset;
+		while (data.hasRemaining()) {
+			int n = channel.read(data, pos);
+			if (n < 0)
+				throw new EOFException(String.format(
+						"Dump truncated: got %d of %d bytes at offset %d",
+						data.position(), size, offset));
+			pos += n;
+		}
+		data.flip();
+		return data;
+	}
+
+	/**
+	 * Get the id-th record, parsed. Its data is not copied out of the raw
+	 * record until ArcRecord.getData is called.
+	 * 
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 *             if the dump is truncated or the record is malformed
+	 */
+	public ArcRecord readRecord(int id) throws IOException {
+		return parse(id, getRecord(id));
+	}
+
+	static ArcRecord parse(int id, ByteBuffer raw) throws IOException {
+		try {
+			ArcRecord rec = ArcRecord.parseArcRecord(raw);
+			rec.setId(id);
+			return rec;
+		} catch (ParseException e) {
+			throw new IOException("Malformed record " + id + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Get a spliterator over all the records, in order. Records are read
+	 * sequentially in large chunks, and the spliterator splits on record
+	 * boundaries into parts of about the same size in bytes.
+	 * 
+	 * @return
+	 */
+	public Spliterator<ArcRecord> spliterator() {
+		return new ArcRecordSpliterator(this, 0, getNumRecords());
+	}
+
+	/**
+	 * Get a sequential stream over all the records. I/O errors are thrown as
+	 * UncheckedIOException.
+	 * 
+	 * @return
+	 */
+	public Stream<ArcRecord> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Get a parallel stream over all the records. I/O errors are thrown as
+	 * UncheckedIOException.
+	 * 
+	 * @return
+	 */
+	public Stream<ArcRecord> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/**
+	 * Get a sequential stream over the records that pass a filter, in order.
+	 * Only the sidecars used by the filter and the selected records are read.
+	 * 
+	 * @param filter
+	 *            a test on record ids, built from the predicates of
+	 *            getMetadata() or getDuplicates()
+	 * @return
+	 * @throws IOException
+	 */
+	public Stream<ArcRecord> stream(IntPredicate filter) throws IOException {
+		int[] ids = select(filter);
+		return StreamSupport.stream(new ArcRecordIdSpliterator(this, ids, 0,
+				ids.length), false);
+	}
+
+	/**
+	 * Parallel version of stream(IntPredicate).
+	 * 
+	 * @param filter
+	 * @return
+	 * @throws IOException
+	 */
+	public Stream<ArcRecord> parallelStream(IntPredicate filter)
+			throws IOException {
+		int[] ids = select(filter);
+		return StreamSupport.stream(new ArcRecordIdSpliterator(this, ids, 0,
+				ids.length), true);
+	}
+
+	private int[] select(IntPredicate filter) {
+		return IntStream.range(0, getNumRecords()).filter(filter).toArray();
+	}
+
+	/**
+	 * Get the metadata of the records, from the sidecar built next to the
+	 * index file (see RecordMetadata).
+	 * 
+	 * @return
+	 * @throws IOException
+	 *             if there is no metadata sidecar
+	 */
+	public RecordMetadata getMetadata() throws IOException {
+		RecordMetadata meta = metadata;
+		if (meta == null) {
+			synchronized (this) {
+				if (metadata == null)
+					metadata = new RecordMetadata(idxFile
+							+ RecordMetadata.SUFFIX);
+				meta = metadata;
+			}
+		}
+		return meta;
+	}
+
+	/**
+	 * Get the duplicate map of the records, from the sidecar built next to
+	 * the index file (see DuplicateMap).
+	 * 
+	 * @return
+	 * @throws IOException
+	 *             if there is no duplicate map
+	 */
+	public DuplicateMap getDuplicates() throws IOException {
+		DuplicateMap dups = duplicates;
+		if (dups == null) {
+			synchronized (this) {
+				if (duplicates == null)
+					duplicates = new DuplicateMap(idxFile
+							+ DuplicateMap.SUFFIX);
+				dups = duplicates;
+			}
+		}
+		return dups;
+	}
+
+	/**
+	 * Same as getRecord, but copies the record into a new array.
+	 * 
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getRecordBytes(int id) throws IOException {
+		ByteBuffer record = getRecord(id);
+		byte[] data = new byte[record.remaining()];
+		record.get(data);
 		return data;
 	}
+
+	/**
+	 * Find the first record archived with the given URL, through the URL
+	 * index built next to the index file (see UrlIndex).
+	 * 
+	 * @param url
+	 * @return the record id, or -1 if no record has this URL
+	 * @throws IOException
+	 *             if there is no URL index
+	 */
+	public int getRecordId(String url) throws IOException {
+		UrlIndex urls = getUrlIndex();
+		long fingerprint = UrlIndex.fingerprint(url);
+		long pos = urls.find(fingerprint);
+		if (pos < 0)
+			return -1;
+		// Check the header of each candidate: fingerprints may collide
+		for (; pos < urls.size() && urls.getFingerprint(pos) == fingerprint; pos++) {
+			int id = urls.getId(pos);
+			if (hasUrl(getRecord(id), url))
+				return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * Same as getRecord, for the first record archived with the given URL.
+	 * 
+	 * @param url
+	 * @return the record, or null if no record has this URL
+	 * @throws IOException
+	 *             if there is no URL index
+	 */
+	public ByteBuffer getRecordByUrl(String url) throws IOException {
+		int id = getRecordId(url);
+		return id < 0 ? null : getRecord(id);
+	}
+
+	private UrlIndex getUrlIndex() throws IOException {
+		UrlIndex urls = urlIndex;
+		if (urls == null) {
+			synchronized (this) {
+				if (urlIndex == null)
+					urlIndex = new UrlIndex(idxFile + UrlIndex.SUFFIX);
+				urls = urlIndex;
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Does the header of the record start with the given URL?
+	 */
+	private static boolean hasUrl(ByteBuffer record, String url) {
+		int n = url.length(), p = record.position();
+		if (record.remaining() <= n || record.get(p + n) != ' ')
+			return false;
+		for (int i = 0; i < n; i++)
+			if ((record.get(p + i) & 0xff) != url.charAt(i))
+				return false;
+		return true;
+	}
+
+	private ByteBuffer slice(int id, long offset, int size) {
+		int lo = 0, hi = segmentFirstId.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (segmentFirstId[mid] <= id)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		long segmentStart = idxReader.getRecordOffset(segmentFirstId[lo]);
+		// duplicate() gives this thread its own position and limit; the
+		// shared mapping itself is never modified.
+		ByteBuffer data = segments[lo].duplicate();
+		int start = (int) (offset - segmentStart);
+		data.limit(start + size).position(start);
+		return data.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Release the dump file. Buffers obtained in mapped mode stay valid until
+	 * they are garbage collected.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (readAhead != null)
+			readAhead.close();
+		arcDump.close();
+		if (asyncChannel != null)
+			asyncChannel.close();
+	}
 }
@@ -0,0 +1,138 @@
+package util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a range of records of an ARC dump.
+ * 
+ * Records are read sequentially, a chunk of CHUNK_SIZE bytes (or one record,
+ * if larger) at a time. Each chunk is a new buffer, so the records handed out
+ * stay valid after the spliterator moves on: their data is a view of the
+ * chunk, only copied if ArcRecord.getData is called. With a mapped reader,
+ * records are views of the mapping and nothing is read at all. Records of
+ * compressed dumps are inflated one by one from the chunk.
+ * 
+ * Splitting uses the index to cut the remaining records into two parts of
+ * about the same size in bytes, so parallel streams spread the I/O evenly.
+ * 
+ */
+public class ArcRecordSpliterator implements Spliterator<ArcRecord> {
+
+	public static final int CHUNK_SIZE = 4 << 20;
+	/** Ranges smaller than this are not split. */
+	public static final long MIN_SPLIT_SIZE = 2L * CHUNK_SIZE;
+
+	private final ArcRecordReader reader;
+	private final ArcIndexReader index;
+	private int next; // next record to hand out
+	private final int end;
+
+	// Current chunk, holding records [next, chunkEnd)
+	private ByteBuffer chunk;
+	private long chunkOffset;
+	private int chunkEnd;
+
+	/**
+	 * Constructor, for records [start, end) of the reader's dump.
+	 * 
+	 * @param reader
+	 * @param start
+	 * @param end
+	 */
+	public ArcRecordSpliterator(ArcRecordReader reader, int start, int end) {
+		this.reader = reader;
+		this.index = reader.getIndex();
+		this.next = start;
+		this.end = end;
+		this.chunkEnd = start;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super ArcRecord> action) {
+		if (next >= end)
+			return false;
+		ArcRecord rec;
+		try {
+			if (reader.isMapped())
+				rec = ArcRecordReader.parse(next, reader.getRecord(next));
+			else {
+				if (next >= chunkEnd)
+					readChunk();
+				ByteBuffer raw = chunk.duplicate();
+				int pos = (int) (index.getRecordOffset(next) - chunkOffset);
+				raw.limit(pos + (int) index.getRecordSize(next)).position(pos);
+				rec = ArcRecordReader.parse(next, reader.decode(raw.slice()));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		next++;
+		action.accept(rec);
+		return true;
+	}
+
+	/**
+	 * Read the records following next, up to CHUNK_SIZE bytes (at least one
+	 * record).
+	 */
+	private void readChunk() throws IOException {
+		chunkOffset = index.getRecordOffset(next);
+		int lo = next + 1, hi = end;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (index.getRecordOffset(mid) - chunkOffset <= CHUNK_SIZE)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		chunkEnd = lo;
+		long size = index.getRecordOffset(chunkEnd) - chunkOffset;
+		if (size > Integer.MAX_VALUE)
+			throw ArcRecordReader.tooLarge(next, size);
+		chunk = reader.readRange(chunkOffset, (int) size);
+	}
+
+	@Override
+	public Spliterator<ArcRecord> trySplit() {
+		// Records of the current chunk stay here
+		int start = Math.max(next, chunkEnd);
+		if (end - start < 2)
+			return null;
+		long startOffset = index.getRecordOffset(start);
+		long endOffset = index.getRecordOffset(end);
+		if (endOffset - startOffset < MIN_SPLIT_SIZE)
+			return null;
+		long middle = startOffset + (endOffset - startOffset) / 2;
+		int lo = start + 1, hi = end - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (index.getRecordOffset(mid) < middle)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		// Hand out [next, lo) and keep [lo, end)
+		ArcRecordSpliterator prefix = new ArcRecordSpliterator(reader, next, lo);
+		prefix.chunk = chunk;
+		prefix.chunkOffset = chunkOffset;
+		prefix.chunkEnd = chunkEnd;
+		next = lo;
+		chunk = null;
+		chunkEnd = lo;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return end - next;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+	}
+}
@@ -0,0 +1,247 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+
+/**
+ * Sequential scanner over the records of an uncompressed ARC dump.
+ * 
+ * Record headers are read through a large buffer with positioned reads, so
+ * several scanners can work on the same channel at once; record data is
+ * skipped without being read whenever it does not fit in the buffer.
+ * 
+ */
+public class ArcScanner {
+
+	/**
+	 * Callback receiving the records found by a scan.
+	 */
+	public interface Handler {
+		/**
+		 * Called for each record, in file order. The header is backed by the
+		 * scanner's buffer, so it must not be used after the call returns.
+		 * 
+		 * @param offset
+		 *            offset of the record header in the dump
+		 * @param end
+		 *            offset right after the record data and its newline
+		 * @param header
+		 * @throws IOException
+		 */
+		void record(long offset, long end, ArcRecord header) throws IOException;
+	}
+
+	public static final int BUFFER_SIZE = 1 << 20;
+	public static final int MAX_HEADER_LINE_SIZE = ArcIndexBuilder.MAX_HEADER_LINE_SIZE;
+	/** Bytes of data made available with each header (see ArcRecord.peekData). */
+	static final int PEEK_SIZE = 256;
+
+	private final FileChannel channel;
+	private final long fileSize;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private long bufferStart = 0;
+	private boolean truncated;
+
+	public ArcScanner(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.fileSize = channel.size();
+		buffer.limit(0);
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Did the last scan stop on an incomplete record at the end of the dump?
+	 * 
+	 * @return
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Scan the records that start in [start, limit).
+	 * 
+	 * @param start
+	 *            offset of a record header
+	 * @param limit
+	 * @param handler
+	 * @return the offset at which the scan stopped: the start of the first
+	 *         record at or after limit, the end of the dump, or the start of an
+	 *         incomplete last record (see isTruncated)
+	 * @throws IOException
+	 * @throws ParseException
+	 *             if a record header is malformed
+	 */
+	public long scan(long start, long limit, Handler handler)
+			throws IOException, ParseException {
+		truncated = false;
+		long pos = start;
+		while (pos < limit && pos < fileSize) {
+			int n = lineLength(pos);
+			if (n < 0) {
+				if (pos + available(pos, MAX_HEADER_LINE_SIZE + 1) < fileSize)
+					throw new ParseException(String.format(
+							"Header line too long at offset %d", pos), 0);
+				truncated = true;
+				break;
+			}
+			ArcRecord header;
+			try {
+				int s = (int) (pos - bufferStart);
+				header = ArcRecord.parseArcRecord(buffer, s, s + n);
+				header.setPeekData(s + n + 1, Math.min(buffer.limit(), s + n
+						+ 1 + (int) Math.min(header.getLength(), PEEK_SIZE)));
+			} catch (ParseException e) {
+				throw new ParseException(String.format(
+						"Malformed header at offset %d: %s", pos, e
+								.getMessage()), 0);
+			}
+			// Record header, newline, data and newline
+			long end = pos + n + 1 + header.getLength() + 1;
+			if (end > fileSize) {
+				truncated = true;
+				break;
+			}
+			handler.record(pos, end, header);
+			pos = end;
+		}
+		return pos;
+	}
+
+	/**
+	 * Find the first record that starts in [from, limit), for a scan starting
+	 * at an arbitrary offset. A candidate must be at the beginning of a line,
+	 * have a well-formed header, and its declared length must lead to a
+	 * newline followed by another well-formed header (or by the end of the
+	 * dump).
+	 * 
+	 * The result is only a good guess: a record whose data contains something
+	 * that looks like a chain of ARC records may fool it.
+	 * 
+	 * @param from
+	 * @param limit
+	 * @return the offset of the record, or -1 if none was found
+	 * @throws IOException
+	 */
+	public long findRecordStart(long from, long limit) throws IOException {
+		long pos = from;
+		if (pos > 0 && byteAt(pos - 1) != '\n') {
+			while (pos < limit && byteAt(pos) != '\n')
+				pos++;
+			pos++;
+		}
+		while (pos < limit && pos < fileSize) {
+			if (isRecordStart(pos))
+				return pos;
+			while (pos < limit && byteAt(pos) != '\n')
+				pos++;
+			pos++;
+		}
+		return -1;
+	}
+
+	private boolean isRecordStart(long pos) throws IOException {
+		long length = headerDataLength(pos);
+		if (length < 0)
+			return false;
+		long end = pos + lineLength(pos) + 1 + length + 1;
+		if (end > fileSize || byteAt(end - 1) != '\n')
+			return false;
+		return end == fileSize || headerDataLength(end) >= 0;
+	}
+
+	/**
+	 * Check the syntax of the header line at pos (url, ip address, 14-digit
+	 * date, content type, length).
+	 * 
+	 * @return the declared data length, or -1 if the line is not a header
+	 */
+	private long headerDataLength(long pos) throws IOException {
+		int n = lineLength(pos);
+		if (n <= 0)
+			return -1;
+		byte[] b = buffer.array();
+		int i = (int) (pos - bufferStart), end = i + n;
+		int field = 0;
+		long length = -1;
+		while (i < end) {
+			if (b[i] == ' ') {
+				i++;
+				continue;
+			}
+			int s = i;
+			while (i < end && b[i] != ' ')
+				i++;
+			field++;
+			if (field == 3 && !isDigits(b, s, i, 14, 14))
+				return -1;
+			if (field == 5) {
+				if (!isDigits(b, s, i, 1, 18))
+					return -1;
+				length = 0;
+				for (int j = s; j < i; j++)
+					length = length * 10 + (b[j] - '0');
+			}
+		}
+		return field == 5 ? length : -1;
+	}
+
+	private static boolean isDigits(byte[] b, int s, int e, int min, int max) {
+		if (e - s < min || e - s > max)
+			return false;
+		for (int i = s; i < e; i++)
+			if (b[i] < '0' || b[i] > '9')
+				return false;
+		return true;
+	}
+
+	/**
+	 * Length of the line starting at pos, without its newline. On return the
+	 * whole line is in the buffer.
+	 * 
+	 * @return the length, or -1 if there is no newline within
+	 *         MAX_HEADER_LINE_SIZE bytes
+	 */
+	private int lineLength(long pos) throws IOException {
+		int n = available(pos, MAX_HEADER_LINE_SIZE + 1);
+		byte[] b = buffer.array();
+		int s = (int) (pos - bufferStart);
+		for (int i = 0; i < n; i++)
+			if (b[s + i] == '\n')
+				return i;
+		return -1;
+	}
+
+	private int byteAt(long pos) throws IOException {
+		if (available(pos, 1) < 1)
+			return -1;
+		return buffer.get((int) (pos - bufferStart));
+	}
+
+	/**
+	 * Make sure [pos, pos + want) is in the buffer, or as much of it as the
+	 * dump holds.
+	 * 
+	 * @return the number of bytes available in the buffer from pos
+	 */
+	private int available(long pos, int want) throws IOException {
+		long bufferEnd = bufferStart + buffer.limit();
+		if (pos < bufferStart || pos + want > bufferEnd
+				&& (bufferEnd < fileSize || pos >= bufferEnd)) {
+			buffer.clear();
+			bufferStart = pos;
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, bufferStart + buffer.position()) < 0)
+					break;
+			}
+			buffer.flip();
+			bufferEnd = bufferStart + buffer.limit();
+		}
+		return (int) Math.max(0, Math.min(want, bufferEnd - pos));
+	}
+}
@@ -0,0 +1,200 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One batch of records fetched by ArcRecordReader.getRecordsAsync.
+ * 
+ * The requested records are sorted by offset (record ids are in offset
+ * order), and records at most MERGE_GAP bytes apart are read together, up to
+ * MAX_READ_SIZE bytes per read, so that scattered requests become a few large
+ * sequential reads. The reads go through an AsynchronousFileChannel, at most
+ * MAX_IN_FLIGHT at a time: each completed read starts the next one, so no
+ * thread waits for the batch. Each record is decoded (and cached) as soon as
+ * its read completes.
+ * 
+ */
+final class BatchFetch {
+
+	/** Records closer than this are read together, gap included. */
+	static final int MERGE_GAP = 64 << 10;
+	/** Largest merged read (a single larger record is read alone). */
+	static final int MAX_READ_SIZE = 4 << 20;
+	static final int MAX_IN_FLIGHT = 16;
+
+	private final ArcRecordReader reader;
+	private final ArcIndexReader index;
+	private final AsynchronousFileChannel channel;
+	private final RecordCache cache;
+
+	// Distinct requested ids in increasing order, and their futures
+	private final int[] ids;
+	private final List<CompletableFuture<ByteBuffer>> futures;
+	private final List<Range> ranges = new ArrayList<Range>();
+	private final AtomicInteger nextRange = new AtomicInteger();
+
+	private BatchFetch(ArcRecordReader reader, AsynchronousFileChannel channel,
+			int[] ids) {
+		this.reader = reader;
+		this.index = reader.getIndex();
+		this.channel = channel;
+		this.cache = reader.getCache();
+		this.ids = ids;
+		this.futures = new ArrayList<CompletableFuture<ByteBuffer>>(ids.length);
+		for (int i = 0; i < ids.length; i++)
+			futures.add(new CompletableFuture<ByteBuffer>());
+	}
+
+	/**
+	 * Start fetching the given records.
+	 * 
+	 * @return one future per requested id, in the same order
+	 */
+	static List<CompletableFuture<ByteBuffer>> fetch(ArcRecordReader reader,
+			AsynchronousFileChannel channel, int[] requested) {
+		int[] sorted = requested.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++)
+			if (n == 0 || sorted[i] != sorted[n - 1])
+				sorted[n++] = sorted[i];
+		BatchFetch batch = new BatchFetch(reader, channel, Arrays.copyOf(sorted,
+				n));
+		batch.plan();
+		for (int i = 0; i < MAX_IN_FLIGHT; i++)
+			batch.startNext();
+
+		List<CompletableFuture<ByteBuffer>> result = new ArrayList<CompletableFuture<ByteBuffer>>(
+				requested.length);
+		boolean[] handedOut = new boolean[n];
+		for (int id : requested) {
+			int k = Arrays.binarySearch(batch.ids, id);
+			CompletableFuture<ByteBuffer> f = batch.futures.get(k);
+			// Repeated ids get their own buffer (position and limit)
+			result.add(handedOut[k] ? f.thenApply(ByteBuffer::duplicate) : f);
+			handedOut[k] = true;
+		}
+		return result;
+	}
+
+	/**
+	 * Complete the cached records, and group the others into reads.
+	 */
+	private void plan() {
+		Range range = null;
+		for (int k = 0; k < ids.length; k++) {
+			int id = ids[k];
+			if (cache != null) {
+				ByteBuffer cached = cache.get(id);
+				if (cached != null) {
+					futures.get(k).complete(cached);
+					continue;
+				}
+			}
+			long offset = index.getRecordOffset(id);
+			long end = offset + index.getRecordSize(id);
+			if (end - offset > Integer.MAX_VALUE) {
+				futures.get(k).completeExceptionally(ArcRecordReader
+						.tooLarge(id, end - offset));
+				continue;
+			}
+			if (range != null && offset - range.end <= MERGE_GAP
+					&& end - range.offset <= MAX_READ_SIZE) {
+				range.end = end;
+				range.to = k + 1;
+			} else {
+				range = new Range(k, offset, end);
+				ranges.add(range);
+			}
+		}
+	}
+
+	private void startNext() {
+		int i = nextRange.getAndIncrement();
+		if (i < ranges.size())
+			ranges.get(i).start();
+	}
+
+	/**
+	 * One read, covering the requested records ids[from, to) (except those
+	 * found in the cache), which may have unrequested records between them.
+	 */
+	private class Range implements CompletionHandler<Integer, Void> {
+		final int from;
+		int to;
+		final long offset;
+		long end;
+		ByteBuffer buffer;
+
+		Range(int k, long offset, long end) {
+			this.from = k;
+			this.to = k + 1;
+			this.offset = offset;
+			this.end = end;
+		}
+
+		void start() {
+			buffer = ByteBuffer.allocate((int) (end - offset));
+			read();
+		}
+
+		private void read() {
+			try {
+				channel.read(buffer, offset + buffer.position(), null, this);
+			} catch (RuntimeException e) {
+				failed(e, null);
+			}
+		}
+
+		@Override
+		public void completed(Integer n, Void attachment) {
+			if (n < 0) {
+				failed(new EOFException(String.format(
+						"Dump truncated: got %d of %d bytes at offset %d",
+						buffer.position(), end - offset, offset)), null);
+				return;
+			}
+			if (buffer.hasRemaining()) {
+				read();
+				return;
+			}
+			// Start the next read before decoding this one
+			startNext();
+			for (int k = from; k < to; k++) {
+				if (futures.get(k).isDone())
+					continue; // Cached
+				int id = ids[k];
+				int pos = (int) (index.getRecordOffset(id) - offset);
+				ByteBuffer raw = buffer.duplicate();
+				raw.limit(pos + (int) index.getRecordSize(id)).position(pos);
+				try {
+					ByteBuffer record = reader.decode(raw.slice())
+							.asReadOnlyBuffer();
+					if (cache != null)
+						cache.put(id, record);
+					futures.get(k).complete(record);
+				} catch (IOException e) {
+					futures.get(k).completeExceptionally(e);
+				}
+			}
+			buffer = null;
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			for (int k = from; k < to; k++)
+				futures.get(k).completeExceptionally(e);
+			buffer = null;
+			startNext();
+		}
+	}
+}
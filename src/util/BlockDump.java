@@ -0,0 +1,485 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block-compressed ARC dump: the bytes of an uncompressed dump, cut into
+ * blocks of a fixed uncompressed size, each compressed on its own (raw
+ * deflate). Blocks hold many small records, so they compress much better
+ * than one gzip member per record, and any record is read by inflating only
+ * the blocks it spans.
+ * 
+ * Layout (big-endian):
+ * 
+ * <pre>
+ * magic (8) | block size (4) | compression level (4)
+ * compressed blocks
+ * offset of each block, then of the end of the last block (8 each)
+ * number of blocks (8) | uncompressed size (8) | offset of the block offsets (8)
+ * </pre>
+ * 
+ * The index of a block dump is a regular ARC index (plain or compact) of
+ * the uncompressed dump: the record at uncompressed offset p is at offset p
+ * % blockSize of block p / blockSize. So repacking an uncompressed dump
+ * keeps its index, URL index and metadata sidecar valid.
+ * 
+ * Decompressed blocks are kept in a RecordCache (keyed by block number), so
+ * reading neighboring records inflates each block once. ArcRecordReader
+ * opens block dumps like the other formats.
+ * 
+ */
+public class BlockDump {
+
+	/** "ARCBLKZ1". Can't be the first bytes of an ARC or gzip file. */
+	public static final long MAGIC = 0x415243424c4b5a31L;
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+	public static final int DEFAULT_LEVEL = 6;
+	/** Capacity of the cache of decompressed blocks of each dump. */
+	public static final long DEFAULT_CACHE_SIZE = 32 << 20;
+	/** Records up to this size are copied through a buffer when repacking. */
+	static final int MAX_BUFFERED_RECORD = 16 << 20;
+	static final int HEADER_SIZE = 16;
+	static final int TRAILER_SIZE = 24;
+
+	private final FileChannel channel;
+	private final int blockSize;
+	private final int level;
+	private final long size;
+	private final long[] blockOffsets;
+	private volatile RecordCache cache;
+
+	/**
+	 * Open a block dump.
+	 * 
+	 * @param channel
+	 *            the dump, which is not closed by this object
+	 * @throws IOException
+	 *             if this is not a valid block dump
+	 */
+	BlockDump(FileChannel channel) throws IOException {
+		this.channel = channel;
+		long fileSize = channel.size();
+		if (fileSize < HEADER_SIZE + TRAILER_SIZE + 8)
+			throw new IOException("Not a block dump");
+		ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+		if (header.getLong(0) != MAGIC)
+			throw new IOException("Not a block dump");
+		blockSize = header.getInt(8);
+		level = header.getInt(12);
+		ByteBuffer trailer = readFully(channel, fileSize - TRAILER_SIZE,
+				TRAILER_SIZE);
+		long numBlocks = trailer.getLong(0);
+		size = trailer.getLong(8);
+		long tablePos = trailer.getLong(16);
+		if (blockSize <= 0 || numBlocks < 0 || numBlocks >= Integer.MAX_VALUE / 8
+				|| tablePos + 8 * (numBlocks + 1) + TRAILER_SIZE != fileSize
+				|| (size + blockSize - 1) / blockSize != numBlocks)
+			throw new IOException("Corrupt block dump (bad trailer)");
+		ByteBuffer table = readFully(channel, tablePos,
+				(int) (8 * (numBlocks + 1)));
+		blockOffsets = new long[(int) numBlocks + 1];
+		table.asLongBuffer().get(blockOffsets);
+		// Stripes of the cache hold at least a few blocks each
+		int stripes = (int) Math.max(1, Math.min(RecordCache.DEFAULT_STRIPES,
+				DEFAULT_CACHE_SIZE / (8L * blockSize)));
+		cache = new RecordCache(DEFAULT_CACHE_SIZE, stripes);
+	}
+
+	/**
+	 * Does the file start like a block dump?
+	 * 
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBlockDump(FileChannel channel) throws IOException {
+		return channel.size() >= 8
+				&& readFully(channel, 0, 8).getLong(0) == MAGIC;
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long offset,
+			int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining())
+			if (channel.read(buf, offset + buf.position()) < 0)
+				throw new EOFException(String.format(
+						"Dump truncated: got %d of %d bytes at offset %d", buf
+								.position(), length, offset));
+		buf.flip();
+		return buf;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getNumBlocks() {
+		return blockOffsets.length - 1;
+	}
+
+	/**
+	 * Get the size of the uncompressed dump.
+	 * 
+	 * @return
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Set the cache of decompressed blocks, or null for no cache. By
+	 * default, each dump has a cache of DEFAULT_CACHE_SIZE bytes.
+	 * 
+	 * @param cache
+	 */
+	public void setCache(RecordCache cache) {
+		this.cache = cache;
+	}
+
+	public RecordCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Get the k-th block, decompressed.
+	 * 
+	 * @param k
+	 * @return a read-only buffer owned by the caller
+	 * @throws IOException
+	 */
+	ByteBuffer getBlock(int k) throws IOException {
+		RecordCache c = cache;
+		if (c != null) {
+			ByteBuffer cached = c.get(k);
+			if (cached != null)
+				return cached;
+		}
+		long start = blockOffsets[k];
+		ByteBuffer stored = readFully(channel, start,
+				(int) (blockOffsets[k + 1] - start));
+		int length = (int) Math.min(blockSize, size - (long) k * blockSize);
+		byte[] data = new byte[length];
+		Inflater inflater = GzipMember.borrowInflater();
+		try {
+			inflater.setInput(stored.array(), 0, stored.limit());
+			int n = 0;
+			for (int r; n < length; n += r)
+				if ((r = inflater.inflate(data, n, length - n)) == 0
+						&& (inflater.finished() || inflater.needsInput() || inflater
+								.needsDictionary()))
+					break;
+			// Read the end of the stream, which must come now
+			if (n == length && !inflater.finished()
+					&& inflater.inflate(new byte[1]) > 0)
+				n++;
+			if (n != length || !inflater.finished())
+				throw new IOException(String.format("Corrupt block %d at "
+						+ "offset %d: %d bytes instead of %d", k, start, n,
+						length));
+		} catch (DataFormatException e) {
+			throw new IOException(String.format("Corrupt block %d at offset "
+					+ "%d: %s", k, start, e.getMessage()));
+		} finally {
+			GzipMember.returnInflater(inflater);
+		}
+		ByteBuffer block = ByteBuffer.wrap(data).asReadOnlyBuffer();
+		if (c != null)
+			c.put(k, block);
+		return block;
+	}
+
+	/**
+	 * Read bytes of the uncompressed dump.
+	 * 
+	 * @param offset
+	 * @param length
+	 * @return a read-only buffer, which is a slice of a cached block if the
+	 *         bytes are within one block
+	 * @throws EOFException
+	 *             if the dump ends before
+	 */
+	public ByteBuffer read(long offset, int length) throws IOException {
+		if (offset < 0 || length < 0)
+			throw new IllegalArgumentException("offset=" + offset
+					+ ", length=" + length);
+		if (offset + length > size)
+			throw new EOFException(String.format("Dump truncated: %d bytes "
+					+ "at offset %d, but the dump has %d bytes", length,
+					offset, size));
+		int k = (int) (offset / blockSize);
+		int pos = (int) (offset % blockSize);
+		ByteBuffer block = getBlock(k);
+		if (pos + length <= block.limit()) {
+			block.limit(pos + length).position(pos);
+			return block.slice();
+		}
+		ByteBuffer data = ByteBuffer.allocate(length);
+		while (true) {
+			block.limit(Math.min(block.limit(), pos + data.remaining()))
+					.position(pos);
+			data.put(block);
+			if (!data.hasRemaining())
+				break;
+			block = getBlock(++k);
+			pos = 0;
+		}
+		data.flip();
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Read bytes of the uncompressed dump into a buffer, up to the end of the
+	 * block holding offset.
+	 * 
+	 * @param dst
+	 * @param offset
+	 * @return the number of bytes read, or -1 at the end of the dump
+	 * @throws IOException
+	 */
+	int read(ByteBuffer dst, long offset) throws IOException {
+		if (offset >= size)
+			return -1;
+		ByteBuffer block = getBlock((int) (offset / blockSize));
+		int pos = (int) (offset % blockSize);
+		int n = Math.min(dst.remaining(), block.limit() - pos);
+		block.limit(pos + n).position(pos);
+		dst.put(block);
+		return n;
+	}
+
+	/**
+	 * Streaming writer of a block dump: the bytes written are the
+	 * uncompressed dump.
+	 */
+	public static class Writer implements WritableByteChannel {
+		private final DataOutputStream out;
+		private final Deflater deflater;
+		private final byte[] block;
+		private final byte[] buffer = new byte[1 << 16];
+		private int fill;
+		private long pos = HEADER_SIZE;
+		private long size;
+		private long[] offsets = new long[256];
+		private int numBlocks;
+		private boolean open = true;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param fileName
+		 * @param blockSize
+		 *            uncompressed size of the blocks
+		 * @param level
+		 *            compression level, from 0 (none) to 9 (best)
+		 * @throws IOException
+		 */
+		public Writer(String fileName, int blockSize, int level)
+				throws IOException {
+			if (blockSize <= 0 || level < 0 || level > 9)
+				throw new IllegalArgumentException("blockSize=" + blockSize
+						+ ", level=" + level);
+			block = new byte[blockSize];
+			deflater = new Deflater(level, true);
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(fileName), 1 << 16));
+			out.writeLong(MAGIC);
+			out.writeInt(blockSize);
+			out.writeInt(level);
+		}
+
+		/**
+		 * Get the number of (uncompressed) bytes written so far.
+		 * 
+		 * @return
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Get the size of the compressed blocks written so far.
+		 * 
+		 * @return
+		 */
+		public long getCompressedSize() {
+			return pos - HEADER_SIZE;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (!open)
+				throw new ClosedChannelException();
+			int total = src.remaining();
+			while (src.hasRemaining()) {
+				int n = Math.min(src.remaining(), block.length - fill);
+				src.get(block, fill, n);
+				fill += n;
+				size += n;
+				if (fill == block.length)
+					writeBlock();
+			}
+			return total;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			write(ByteBuffer.wrap(b, off, len));
+		}
+
+		private void writeBlock() throws IOException {
+			if (numBlocks + 1 >= offsets.length) {
+				long[] tmp = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, tmp, 0, numBlocks);
+				offsets = tmp;
+			}
+			offsets[numBlocks++] = pos;
+			deflater.reset();
+			deflater.setInput(block, 0, fill);
+			deflater.finish();
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+				pos += n;
+			}
+			fill = 0;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!open)
+				return;
+			open = false;
+			try {
+				if (fill > 0)
+					writeBlock();
+				offsets[numBlocks] = pos;
+				for (int k = 0; k <= numBlocks; k++)
+					out.writeLong(offsets[k]);
+				out.writeLong(numBlocks);
+				out.writeLong(size);
+				out.writeLong(pos);
+			} finally {
+				deflater.end();
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Repack an indexed dump (of any format) as a block dump, and write its
+	 * index. The URL index and metadata sidecar of the dump, if any, are
+	 * copied next to the new index.
+	 * 
+	 * @param arcFile
+	 * @param idxFile
+	 * @param outFile
+	 * @param outIdxFile
+	 * @param blockSize
+	 * @param level
+	 * @return the writer, closed, for its statistics
+	 * @throws IOException
+	 */
+	public static Writer repack(String arcFile, String idxFile,
+			String outFile, String outIdxFile, int blockSize, int level)
+			throws IOException {
+		ArcRecordReader reader = new ArcRecordReader(arcFile, idxFile);
+		Writer out = null;
+		DataOutputStream idx = null;
+		try {
+			reader.setCache(null);
+			out = new Writer(outFile, blockSize, level);
+			idx = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(outIdxFile), 1 << 16));
+			ArcIndexReader index = reader.getIndex();
+			out.write(reader.readMetaRecord());
+			idx.writeLong(out.getSize());
+			for (int id = 0; id < reader.getNumRecords(); id++) {
+				if (index.getRecordSize(id) <= MAX_BUFFERED_RECORD)
+					out.write(reader.getRecord(id));
+				else
+					reader.transferRecord(id, out);
+				idx.writeLong(out.getSize());
+			}
+		} finally {
+			if (out != null)
+				out.close();
+			if (idx != null)
+				idx.close();
+			reader.close();
+		}
+		for (String suffix : new String[] { UrlIndex.SUFFIX,
+				RecordMetadata.SUFFIX }) {
+			File sidecar = new File(idxFile + suffix);
+			if (sidecar.exists())
+				Files.copy(sidecar.toPath(), new File(outIdxFile + suffix)
+						.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return out;
+	}
+
+	/**
+	 * Main program: repack a dump as a block dump.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int i = 0;
+		int blockSize = DEFAULT_BLOCK_SIZE;
+		int level = DEFAULT_LEVEL;
+		try {
+			for (; i < args.length && args[i].startsWith("-"); i++) {
+				if (args[i].equals("-blockSize"))
+					blockSize = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-level"))
+					level = Integer.parseInt(args[++i]);
+				else
+					throw new IllegalArgumentException(args[i]);
+			}
+			if (blockSize <= 0 || level < 0 || level > 9)
+				throw new IllegalArgumentException();
+		} catch (RuntimeException e) {
+			i = -1;
+		}
+		if (i < 0 || args.length - i != 4) {
+			System.err.format("Usage: java %s [-blockSize <bytes>] "
+					+ "[-level <0-9>] <dump.arc> <dump.idx> <out.arc> "
+					+ "<out.idx>\n", BlockDump.class.getName());
+			return;
+		}
+		try {
+			long start = System.currentTimeMillis();
+			Writer out = repack(args[i], args[i + 1], args[i + 2],
+					args[i + 3], blockSize, level);
+			System.out.format("Success! %s written: %d bytes in %d blocks "
+					+ "(%.1f%% of %d), in %.1f s.\n", args[i + 2], out
+					.getCompressedSize(), out.numBlocks, 100.0
+					* out.getCompressedSize() / Math.max(1, out.getSize()),
+					out.getSize(),
+					(System.currentTimeMillis() - start) / 1000.0);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact ARC index format. Holds the same values as the plain index (the end
+ * offset of each record), but stores the difference with the previous value
+ * as a varint, plus the absolute value of one entry every <i>interval</i>
+ * entries. Any entry is found by decoding at most interval - 1 varints from
+ * the nearest sample, so lookups take constant time.
+ * 
+ * Layout (big-endian):
+ * 
+ * <pre>
+ * magic (8) | interval (4) | unused (4)
+ * varints of the non-sampled entries, padded to a multiple of 8 bytes
+ * samples: absolute value of entries 0, interval, 2 * interval, ... (8 each)
+ * position of the varint following each sample, from file start (8 each)
+ * number of entries (8) | offset of the samples (8)
+ * </pre>
+ * 
+ */
+public class CompactIndex {
+
+	/** "ARCIDXC1". Can't be the first value of a plain index. */
+	public static final long MAGIC = 0x4152434944584331L;
+	public static final int DEFAULT_INTERVAL = 64;
+	static final int HEADER_SIZE = 16;
+
+	private final MappedFile file;
+	private final int interval;
+	private final long numEntries;
+	private final long samplesPos;
+	private final long positionsPos;
+
+	/**
+	 * Map a compact index file in memory.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	CompactIndex(MappedFile file) throws IOException {
+		this.file = file;
+		long size = file.size();
+		if (size < HEADER_SIZE + 16 || file.getLong(0) != MAGIC)
+			throw new IOException("Not a compact index");
+		interval = file.getInt(8);
+		numEntries = file.getLong(size - 16);
+		samplesPos = file.getLong(size - 8);
+		positionsPos = samplesPos + 8 * ((numEntries + interval - 1) / interval);
+	}
+
+	static boolean isCompact(MappedFile file) {
+		return file.size() >= 8 && file.getLong(0) == MAGIC;
+	}
+
+	long size() {
+		return numEntries;
+	}
+
+	/**
+	 * Get the i-th entry.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	long get(long i) {
+		long k = i / interval;
+		long value = file.getLong(samplesPos + 8 * k);
+		int n = (int) (i - k * interval);
+		long pos = file.getLong(positionsPos + 8 * k);
+		for (; n > 0; n--) {
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = file.get(pos++);
+				delta |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			value += delta;
+		}
+		return value;
+	}
+
+	/**
+	 * Get the difference between the i-th and the (i-1)-th entries.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	long delta(long i) {
+		if (i % interval == 0)
+			return get(i) - get(i - 1);
+		// Skip the varints before the one of entry i
+		long k = i / interval;
+		long pos = file.getLong(positionsPos + 8 * k);
+		for (int n = (int) (i - k * interval) - 1; n > 0; n--)
+			while (file.get(pos++) < 0)
+				;
+		long delta = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = file.get(pos++);
+			delta |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return delta;
+	}
+
+	/**
+	 * Streaming writer for the compact format. Entries must be
+	 * non-decreasing.
+	 */
+	public static class Writer {
+		private final DataOutputStream out;
+		private final int interval;
+		private long pos = HEADER_SIZE;
+		private long count = 0;
+		private long previous;
+		private long[] samples = new long[256];
+		private long[] positions = new long[256];
+
+		public Writer(String fileName, int interval) throws IOException {
+			this.interval = interval;
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(fileName), 1 << 16));
+			out.writeLong(MAGIC);
+			out.writeInt(interval);
+			out.writeInt(0);
+		}
+
+		public void write(long value) throws IOException {
+			if (count % interval == 0) {
+				int k = (int) (count / interval);
+				if (k == samples.length) {
+					samples = grow(samples);
+					positions = grow(positions);
+				}
+				samples[k] = value;
+				positions[k] = pos;
+			} else {
+				long delta = value - previous;
+				if (delta < 0)
+					throw new IOException("Index entries must not decrease");
+				while ((delta & ~0x7fL) != 0) {
+					out.write((int) (delta & 0x7f) | 0x80);
+					delta >>>= 7;
+					pos++;
+				}
+				out.write((int) delta);
+				pos++;
+			}
+			previous = value;
+			count++;
+		}
+
+		public void close() throws IOException {
+			for (; pos % 8 != 0; pos++)
+				out.write(0);
+			int numSamples = (int) ((count + interval - 1) / interval);
+			for (int k = 0; k < numSamples; k++)
+				out.writeLong(samples[k]);
+			for (int k = 0; k < numSamples; k++)
+				out.writeLong(positions[k]);
+			out.writeLong(count);
+			out.writeLong(pos);
+			out.close();
+		}
+
+		private static long[] grow(long[] a) {
+			long[] tmp = new long[a.length * 2];
+			System.arraycopy(a, 0, tmp, 0, a.length);
+			return tmp;
+		}
+	}
+
+	/**
+	 * Convert an index (plain or compact) to the compact format.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.err.format("Usage: java %s <dump.idx> <compact.idx> "
+					+ "[<interval>]\n", CompactIndex.class.getName());
+			return;
+		}
+		try {
+			int interval = args.length > 2 ? Integer.parseInt(args[2])
+					: DEFAULT_INTERVAL;
+			ArcIndexReader in = new ArcIndexReader(args[0]);
+			Writer out = new Writer(args[1], interval);
+			for (int i = 0; i <= in.getNumRecords(); i++)
+				out.write(in.getRecordOffset(i));
+			out.close();
+			System.out.format("Success! Compact index written to %s "
+					+ "(%d records).\n", args[1], in.getNumRecords());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,507 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Map from each record of an ARC dump to the canonical record of its group
+ * of duplicates, so that scans can skip the copies of a page. Built by a
+ * pass over the dump (see build), in a file named after the index with the
+ * SUFFIX extension.
+ * 
+ * Only HTML records are compared, on their content (the decoded body of the
+ * HTTP reply, the body as sent if it cannot be decoded, or the whole data if
+ * it is not a reply):
+ * <ul>
+ * <li>exact duplicates have the same MD5 digest;</li>
+ * <li>near duplicates are found with a MinHash signature (NUM_HASHES values)
+ * of the word SHINGLE_SIZE-shingles of the text outside tags. With LSH
+ * banding, records with an identical band of the signature (BANDS bands of
+ * ROWS values) are candidates, and a record joins the group of the first
+ * record of the bucket when the similarity estimated from their signatures
+ * reaches the threshold.</li>
+ * </ul>
+ * Groups are merged with a union-find. Records are grouped in id order, and
+ * the canonical record of a group is its first record, so skipping the other
+ * ones keeps the first occurrence of each page. Other records are their own
+ * canonical record.
+ * 
+ * Building takes about 180 bytes of heap per record: digests and signatures
+ * are kept in primitive arrays (signatures by chunks of CHUNK_RECORDS
+ * records), and the buckets of one band at a time in an open addressing
+ * table of record ids, reused from band to band.
+ * 
+ * Layout (big-endian):
+ * 
+ * <pre>
+ * magic (8) | number of records (8) | number of duplicates (8) | threshold (8)
+ * canonical record id of each record (4 each)
+ * </pre>
+ * 
+ */
+public class DuplicateMap {
+
+	public static final String SUFFIX = ".dup";
+	/** "ARCDUPv1" */
+	public static final long MAGIC = 0x4152434455507631L;
+	public static final int NUM_HASHES = 64;
+	public static final int BANDS = 16;
+	static final int ROWS = NUM_HASHES / BANDS; // 4 values of 16 bits: a long
+	public static final int SHINGLE_SIZE = 4;
+	public static final double DEFAULT_THRESHOLD = 0.8;
+	static final int HEADER_SIZE = 32;
+	static final int CHUNK_BITS = 16;
+	static final int CHUNK_RECORDS = 1 << CHUNK_BITS; // signatures per chunk
+
+	// Kinds of records, for building
+	private static final byte OTHER = 0, HTML = 1, HTML_WITH_TEXT = 2,
+			EXACT_DUPLICATE = 3;
+
+	// Hash functions of the signature: (A[i] * x + B[i]) >>> 33
+	private static final long[] A = new long[NUM_HASHES];
+	private static final long[] B = new long[NUM_HASHES];
+	static {
+		Random random = new Random(0x5eed);
+		for (int i = 0; i < NUM_HASHES; i++) {
+			A[i] = random.nextLong() | 1;
+			B[i] = random.nextLong();
+		}
+	}
+
+	private static final ThreadLocal<MessageDigest> md5 = ThreadLocal
+			.withInitial(() -> {
+				try {
+					return MessageDigest.getInstance("MD5");
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+
+	private final MappedFile file;
+	private final int size;
+	private final long numDuplicates;
+	private final double threshold;
+
+	/**
+	 * Constructor. Maps the duplicate map file in memory.
+	 * 
+	 * @param dupFile
+	 * @throws IOException
+	 */
+	public DuplicateMap(String dupFile) throws IOException {
+		file = new MappedFile(dupFile);
+		if (file.size() < HEADER_SIZE || file.getLong(0) != MAGIC)
+			throw new IOException("Not a duplicate map: " + dupFile);
+		long n = file.getLong(8);
+		if (n < 0 || n > Integer.MAX_VALUE
+				|| file.size() != HEADER_SIZE + 4 * n)
+			throw new IOException("Corrupt duplicate map: " + dupFile);
+		size = (int) n;
+		numDuplicates = file.getLong(16);
+		threshold = Double.longBitsToDouble(file.getLong(24));
+	}
+
+	public int getNumRecords() {
+		return size;
+	}
+
+	/**
+	 * Get the number of records that are duplicates of an earlier one.
+	 * 
+	 * @return
+	 */
+	public long getNumDuplicates() {
+		return numDuplicates;
+	}
+
+	/**
+	 * Get the similarity threshold of the near duplicates.
+	 * 
+	 * @return
+	 */
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Get the canonical record of the group of a record.
+	 * 
+	 * @param id
+	 * @return the first record of the group, id itself if the record is not
+	 *         a duplicate
+	 */
+	public int getCanonical(int id) {
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException("No record " + id);
+		return file.getInt(HEADER_SIZE + 4L * id);
+	}
+
+	public boolean isCanonical(int id) {
+		return getCanonical(id) == id;
+	}
+
+	/**
+	 * Get a filter that keeps the canonical records (see
+	 * ArcRecordReader.stream(IntPredicate)).
+	 * 
+	 * @return
+	 */
+	public IntPredicate canonical() {
+		return id -> getCanonical(id) == id;
+	}
+
+	/**
+	 * Find the duplicates of a dump and write its duplicate map. Records are
+	 * read and hashed in parallel, then grouped in id order, so the result
+	 * does not depend on the number of threads.
+	 * 
+	 * @param reader
+	 * @param dupFile
+	 * @param threshold
+	 *            minimum estimated Jaccard similarity of the shingles of two
+	 *            near duplicates, in (0, 1]
+	 * @return the number of duplicates
+	 * @throws IOException
+	 */
+	public static long build(ArcRecordReader reader, String dupFile,
+			double threshold) throws IOException {
+		if (threshold <= 0 || threshold > 1)
+			throw new IllegalArgumentException("threshold=" + threshold);
+		int n = reader.getNumRecords();
+		final byte[] kinds = new byte[n];
+		final long[] digestsHigh = new long[n];
+		final long[] digestsLow = new long[n];
+		final short[][] signatures = new short[(int) ((n
+				+ (long) CHUNK_RECORDS - 1) >>> CHUNK_BITS)][];
+		for (int c = 0; c < signatures.length; c++)
+			signatures[c] = new short[NUM_HASHES
+					* Math.min(CHUNK_RECORDS, n - (c << CHUNK_BITS))];
+		try {
+			reader.parallelStream().forEach(
+					rec -> kinds[rec.getId()] = sketch(rec, digestsHigh,
+							digestsLow, signatures));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		int[] parent = new int[n];
+		for (int id = 0; id < n; id++)
+			parent[id] = id;
+		int html = 0, withText = 0;
+		for (int id = 0; id < n; id++)
+			if (kinds[id] != OTHER) {
+				html++;
+				if (kinds[id] == HTML_WITH_TEXT)
+					withText++;
+			}
+		IdTable exact = new IdTable(html);
+		for (int id = 0; id < n; id++) {
+			if (kinds[id] == OTHER)
+				continue;
+			int first = exact.putIfAbsent(digestsHigh[id], id);
+			if (first >= 0 && digestsLow[first] == digestsLow[id]) {
+				union(parent, first, id);
+				if (kinds[id] == HTML_WITH_TEXT)
+					withText--;
+				kinds[id] = EXACT_DUPLICATE;
+			}
+		}
+		exact = null;
+
+		// One band at a time, in one table: the groups do not depend on the
+		// order of the bands, as each record is compared to the first record
+		// of its bucket
+		IdTable buckets = new IdTable(withText);
+		int minMatches = (int) Math.ceil(threshold * NUM_HASHES);
+		for (int b = 0; b < BANDS; b++) {
+			if (b > 0)
+				buckets.clear();
+			for (int id = 0; id < n; id++) {
+				if (kinds[id] != HTML_WITH_TEXT)
+					continue;
+				int other = buckets.putIfAbsent(band(signatures, id, b), id);
+				if (other >= 0 && find(parent, other) != find(parent, id)
+						&& matches(signatures, other, id) >= minMatches)
+					union(parent, other, id);
+			}
+		}
+
+		long duplicates = 0;
+		for (int id = 0; id < n; id++) {
+			parent[id] = find(parent, id);
+			if (parent[id] != id)
+				duplicates++;
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(dupFile), 1 << 16));
+		try {
+			out.writeLong(MAGIC);
+			out.writeLong(n);
+			out.writeLong(duplicates);
+			out.writeLong(Double.doubleToLongBits(threshold));
+			for (int id = 0; id < n; id++)
+				out.writeInt(parent[id]);
+		} finally {
+			out.close();
+		}
+		return duplicates;
+	}
+
+	/**
+	 * Hash the content of a record into digests and signatures, at its id.
+	 * 
+	 * @return the kind of record
+	 */
+	static byte sketch(ArcRecord rec, long[] digestsHigh, long[] digestsLow,
+			short[][] signatures) {
+		String type = rec.getContentType();
+		if (type == null || !type.toLowerCase().contains("html"))
+			return OTHER;
+		ByteBuffer content = rec.getDataBuffer();
+		if (content == null)
+			content = ByteBuffer.allocate(0);
+		if (HttpReply.peekStatusCode(content) > 0) {
+			HttpReply reply = null;
+			try {
+				reply = HttpReply.parseHttpReply(content);
+				content = reply.getContent();
+			} catch (ParseException e) {
+				// Not a valid reply: use the whole data
+			} catch (IOException e) {
+				// Corrupt compressed body: use it as it was sent
+				content = reply.getBody();
+			}
+		}
+		int id = rec.getId();
+		MessageDigest digest = md5.get();
+		digest.reset();
+		digest.update(content.duplicate());
+		ByteBuffer d = ByteBuffer.wrap(digest.digest());
+		digestsHigh[id] = d.getLong(0);
+		digestsLow[id] = d.getLong(8);
+
+		int[] mins = new int[NUM_HASHES];
+		if (!minHash(content, mins))
+			return HTML;
+		short[] chunk = signatures[id >>> CHUNK_BITS];
+		for (int i = 0, p = offset(id); i < NUM_HASHES; i++)
+			chunk[p + i] = (short) mins[i];
+		return HTML_WITH_TEXT;
+	}
+
+	/**
+	 * Compute the MinHash values of the word shingles of a page (text
+	 * outside tags; words are runs of ASCII letters and digits, ignoring
+	 * case, and of non-ASCII bytes).
+	 * 
+	 * @return false if the page has no words
+	 */
+	static boolean minHash(ByteBuffer content, int[] mins) {
+		Arrays.fill(mins, Integer.MAX_VALUE);
+		long[] words = new long[SHINGLE_SIZE]; // Last words, circular
+		long numWords = 0;
+		long h = 0;
+		boolean inTag = false, inWord = false;
+		for (int p = content.position(), end = content.limit(); p <= end; p++) {
+			int c = p < end ? content.get(p) : ' ';
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			boolean wordChar = !inTag
+					&& (c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c < 0);
+			if (wordChar) {
+				if (!inWord)
+					h = 0xcbf29ce484222325L;
+				h = (h ^ (c & 0xff)) * 0x100000001b3L;
+				inWord = true;
+				continue;
+			}
+			if (inWord) {
+				words[(int) (numWords++ % SHINGLE_SIZE)] = h;
+				if (numWords >= SHINGLE_SIZE)
+					addShingle(words, numWords, SHINGLE_SIZE, mins);
+				inWord = false;
+			}
+			if (c == '<')
+				inTag = true;
+			else if (c == '>')
+				inTag = false;
+		}
+		if (numWords == 0)
+			return false;
+		if (numWords < SHINGLE_SIZE)
+			addShingle(words, numWords, (int) numWords, mins);
+		return true;
+	}
+
+	/**
+	 * Add the shingle of the last k words.
+	 */
+	private static void addShingle(long[] words, long numWords, int k,
+			int[] mins) {
+		long s = 0;
+		for (long w = numWords - k; w < numWords; w++)
+			s = s * 0x9e3779b97f4a7c15L + words[(int) (w % SHINGLE_SIZE)];
+		s = mix(s);
+		for (int i = 0; i < NUM_HASHES; i++) {
+			int v = (int) ((A[i] * s + B[i]) >>> 33);
+			if (v < mins[i])
+				mins[i] = v;
+		}
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ h >>> 33;
+	}
+
+	/**
+	 * Get band b of the signature of a record (ROWS values of 16 bits).
+	 */
+	private static long band(short[][] signatures, int id, int b) {
+		short[] chunk = signatures[id >>> CHUNK_BITS];
+		long key = 0;
+		for (int i = offset(id) + ROWS * b, r = 0; r < ROWS; r++, i++)
+			key = key << 16 | chunk[i] & 0xffff;
+		return key;
+	}
+
+	/**
+	 * Get the number of equal values of two signatures.
+	 */
+	private static int matches(short[][] signatures, int id1, int id2) {
+		short[] chunk1 = signatures[id1 >>> CHUNK_BITS];
+		short[] chunk2 = signatures[id2 >>> CHUNK_BITS];
+		int p1 = offset(id1), p2 = offset(id2);
+		int n = 0;
+		for (int i = 0; i < NUM_HASHES; i++)
+			if (chunk1[p1 + i] == chunk2[p2 + i])
+				n++;
+		return n;
+	}
+
+	/**
+	 * Get the offset of the signature of a record in its chunk.
+	 */
+	private static int offset(int id) {
+		return NUM_HASHES * (id & (CHUNK_RECORDS - 1));
+	}
+
+	/**
+	 * Open addressing table from long keys to record ids (linear probing, at
+	 * most 3/4 full).
+	 */
+	private static class IdTable {
+		private final long[] keys;
+		private final int[] ids; // -1 for free slots
+		private final int mask;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param capacity
+		 *            maximum number of keys
+		 */
+		IdTable(int capacity) {
+			long slots = Long.highestOneBit(Math.max(4L * capacity / 3, 8)) << 1;
+			if (slots > 1 << 30)
+				throw new IllegalStateException("Too many records: " + capacity);
+			keys = new long[(int) slots];
+			ids = new int[(int) slots];
+			mask = (int) slots - 1;
+			clear();
+		}
+
+		void clear() {
+			Arrays.fill(ids, -1);
+		}
+
+		/**
+		 * Map a key to a record id, unless it is mapped already.
+		 * 
+		 * @return the id it was mapped to, or -1 if it was not
+		 */
+		int putIfAbsent(long key, int id) {
+			for (int slot = (int) mix(key) & mask;; slot = (slot + 1) & mask) {
+				if (ids[slot] < 0) {
+					keys[slot] = key;
+					ids[slot] = id;
+					return -1;
+				}
+				if (keys[slot] == key)
+					return ids[slot];
+			}
+		}
+	}
+
+	private static int find(int[] parent, int id) {
+		while (parent[id] != id) {
+			parent[id] = parent[parent[id]]; // Path halving
+			id = parent[id];
+		}
+		return id;
+	}
+
+	/**
+	 * Merge the groups of two records. The root of a group is its first
+	 * record.
+	 */
+	private static void union(int[] parent, int id1, int id2) {
+		int r1 = find(parent, id1), r2 = find(parent, id2);
+		if (r1 < r2)
+			parent[r2] = r1;
+		else if (r2 < r1)
+			parent[r1] = r2;
+	}
+
+	/**
+	 * Main program: build the duplicate map of a dump (next to its index),
+	 * and print the groups of the records given as arguments.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int i = 0;
+		double threshold = DEFAULT_THRESHOLD;
+		if (args.length > 1 && args[0].equals("-threshold")) {
+			threshold = Double.parseDouble(args[1]);
+			i = 2;
+		}
+		if (args.length - i < 2) {
+			System.err.format("Usage: java %s [-threshold <similarity>] "
+					+ "<dump.arc> <dump.idx> [<id>...]\n", DuplicateMap.class
+					.getName());
+			return;
+		}
+		try {
+			ArcRecordReader reader = new ArcRecordReader(args[i], args[i + 1]);
+			long start = System.currentTimeMillis();
+			long duplicates = build(reader, args[i + 1] + SUFFIX, threshold);
+			System.out.format("Success! Duplicate map written to %s: %d "
+					+ "duplicates out of %d records, in %.1f s.\n", args[i + 1]
+					+ SUFFIX, duplicates, reader.getNumRecords(), (System
+					.currentTimeMillis() - start) / 1000.0);
+			DuplicateMap map = reader.getDuplicates();
+			for (i += 2; i < args.length; i++) {
+				int id = Integer.parseInt(args[i]);
+				System.out.format("Record %d: canonical=%d\n", id, map
+						.getCanonical(id));
+			}
+			reader.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Sequential scanner over the records of a compressed ARC dump (one gzip
+ * member per record). Each member is inflated to find where it ends; only
+ * the record header line is kept. Offsets given to the handler are those of
+ * the members in the compressed file.
+ * 
+ */
+public class GzipArcScanner {
+
+	public static final int BUFFER_SIZE = ArcScanner.BUFFER_SIZE;
+	public static final int MAX_HEADER_LINE_SIZE = ArcScanner.MAX_HEADER_LINE_SIZE;
+
+	private final FileChannel channel;
+	private final long fileSize;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private long bufferStart = 0;
+	private final Inflater inflater = new Inflater(true);
+	private final byte[] output = new byte[1 << 16];
+	private final ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+	private int outputKept; // bytes at the start of output from this member
+	private boolean truncated;
+
+	public GzipArcScanner(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.fileSize = channel.size();
+		buffer.limit(0);
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Did the last scan stop on an incomplete member at the end of the dump?
+	 * 
+	 * @return
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Scan the members that start in [start, limit).
+	 * 
+	 * @param start
+	 *            offset of a gzip member
+	 * @param limit
+	 * @param handler
+	 * @return the offset at which the scan stopped (see ArcScanner.scan)
+	 * @throws IOException
+	 *             if a member is not valid gzip
+	 * @throws ParseException
+	 *             if a record header is malformed
+	 */
+	public long scan(long start, long limit, ArcScanner.Handler handler)
+			throws IOException, ParseException {
+		truncated = false;
+		long pos = start;
+		try {
+			while (pos < limit && pos < fileSize) {
+				int n = available(pos, MAX_HEADER_LINE_SIZE);
+				int h = GzipMember.headerLength(buffer.array(),
+						(int) (pos - bufferStart), n);
+				if (h < 0) {
+					truncated = true;
+					break;
+				}
+				long end = inflate(pos, pos + h);
+				if (end < 0 || end > fileSize) {
+					truncated = true;
+					break;
+				}
+				handler.record(pos, end, parseHeader(pos));
+				pos = end;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(String.format(
+					"Corrupt gzip member at offset %d: %s", pos, e.getMessage()));
+		} finally {
+			inflater.reset();
+		}
+		return pos;
+	}
+
+	/**
+	 * Inflate the deflate stream at data. The beginning of the output stays
+	 * in the output array.
+	 * 
+	 * @return the end of the member (after its trailer), or -1 if the dump
+	 *         ends before the stream
+	 */
+	private long inflate(long member, long data) throws IOException,
+			DataFormatException {
+		inflater.reset();
+		long pos = data;
+		outputKept = 0;
+		while (!inflater.finished()) {
+			if (inflater.needsInput()) {
+				// Take whatever is buffered: asking for more would reload the
+				// buffer at each member
+				if (available(pos, 1) == 0)
+					return -1;
+				int n = (int) (bufferStart + buffer.limit() - pos);
+				inflater.setInput(buffer.array(), (int) (pos - bufferStart), n);
+				pos += n;
+			}
+			// Keep the beginning of the output, which holds the header line
+			int off = Math.min(outputKept, MAX_HEADER_LINE_SIZE + 1);
+			int n = inflater.inflate(output, off, output.length - off);
+			if (outputKept <= MAX_HEADER_LINE_SIZE)
+				outputKept += n;
+			if (n == 0 && inflater.needsDictionary())
+				throw new DataFormatException("Preset dictionary");
+		}
+		return pos - inflater.getRemaining() + GzipMember.TRAILER_SIZE;
+	}
+
+	private ArcRecord parseHeader(long member) throws ParseException {
+		int n = Math.min(outputKept, MAX_HEADER_LINE_SIZE + 1);
+		for (int i = 0; i < n; i++)
+			if (output[i] == '\n') {
+				try {
+					ArcRecord header = ArcRecord.parseArcRecord(outputBuffer, 0,
+							i);
+					header.setPeekData(i + 1, Math.min(n, i + 1 + (int) Math
+							.min(header.getLength(), ArcScanner.PEEK_SIZE)));
+					return header;
+				} catch (ParseException e) {
+					throw new ParseException(String.format(
+							"Malformed header in member at offset %d: %s",
+							member, e.getMessage()), 0);
+				}
+			}
+		throw new ParseException(String.format(
+				"No header line in member at offset %d", member), 0);
+	}
+
+	/**
+	 * Make sure [pos, pos + want) is in the buffer, or as much of it as the
+	 * dump holds (see ArcScanner).
+	 */
+	private int available(long pos, int want) throws IOException {
+		long bufferEnd = bufferStart + buffer.limit();
+		if (pos < bufferStart || pos + want > bufferEnd
+				&& (bufferEnd < fileSize || pos >= bufferEnd)) {
+			buffer.clear();
+			bufferStart = pos;
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, bufferStart + buffer.position()) < 0)
+					break;
+			}
+			buffer.flip();
+			bufferEnd = bufferStart + buffer.limit();
+		}
+		return (int) Math.max(0, Math.min(want, bufferEnd - pos));
+	}
+}
@@ -0,0 +1,151 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Helpers for compressed ARC dumps (.arc.gz), where each record is a
+ * separate gzip member. The index of such a dump holds the offsets of the
+ * members in the compressed file, so any record can be inflated on its own.
+ * 
+ * Inflaters are pooled: creating one allocates native memory, which is too
+ * expensive to do for each record.
+ * 
+ */
+public class GzipMember {
+
+	public static final int MAGIC = 0x1f8b;
+	public static final int TRAILER_SIZE = 8;
+
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	/**
+	 * Get an Inflater for raw deflate data (no zlib header) from the pool.
+	 * 
+	 * @return
+	 */
+	static Inflater borrowInflater() {
+		Inflater inflater = inflaters.poll();
+		return inflater != null ? inflater : new Inflater(true);
+	}
+
+	static void returnInflater(Inflater inflater) {
+		inflater.reset();
+		inflaters.offer(inflater);
+	}
+
+	/**
+	 * Does the file start with a gzip member?
+	 * 
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isGzip(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(2);
+		while (magic.hasRemaining())
+			if (channel.read(magic, magic.position()) < 0)
+				return false;
+		return (magic.getShort(0) & 0xffff) == MAGIC;
+	}
+
+	/**
+	 * Get the length of the gzip header at b[off].
+	 * 
+	 * @param b
+	 * @param off
+	 * @param len
+	 *            number of bytes available from off
+	 * @return the header length, or -1 if it is longer than len
+	 * @throws IOException
+	 *             if this is not a gzip header
+	 */
+	public static int headerLength(byte[] b, int off, int len)
+			throws IOException {
+		if (len < 10)
+			return -1;
+		if ((b[off] & 0xff) != MAGIC >> 8 || (b[off + 1] & 0xff) != (MAGIC & 0xff)
+				|| b[off + 2] != 8)
+			throw new IOException("Not a gzip member");
+		int flags = b[off + 3];
+		int n = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (len < n + 2)
+				return -1;
+			n += 2 + ((b[off + n] & 0xff) | (b[off + n + 1] & 0xff) << 8);
+		}
+		for (int flag : new int[] { FNAME, FCOMMENT })
+			if ((flags & flag) != 0) {
+				while (n < len && b[off + n] != 0)
+					n++;
+				n++; // Zero terminator
+			}
+		if ((flags & FHCRC) != 0)
+			n += 2;
+		return n <= len ? n : -1;
+	}
+
+	/**
+	 * Inflate a complete gzip member.
+	 * 
+	 * @param member
+	 *            the compressed member, from position to limit
+	 * @return a new buffer holding the uncompressed data
+	 * @throws IOException
+	 *             if the member is malformed or its CRC does not match
+	 */
+	public static ByteBuffer inflate(ByteBuffer member) throws IOException {
+		byte[] b;
+		int off, len = member.remaining();
+		if (member.hasArray()) {
+			b = member.array();
+			off = member.arrayOffset() + member.position();
+		} else {
+			b = new byte[len];
+			member.duplicate().get(b);
+			off = 0;
+		}
+		int h = headerLength(b, off, len);
+		if (h < 0 || len < h + TRAILER_SIZE)
+			throw new IOException("Truncated gzip member");
+		int t = off + len - TRAILER_SIZE;
+		long crc = (b[t] & 0xffL) | (b[t + 1] & 0xffL) << 8
+				| (b[t + 2] & 0xffL) << 16 | (b[t + 3] & 0xffL) << 24;
+		int size = (b[t + 4] & 0xff) | (b[t + 5] & 0xff) << 8
+				| (b[t + 6] & 0xff) << 16 | (b[t + 7] & 0xff) << 24;
+		if (size < 0)
+			throw new IOException("Gzip member too large: " + (size & 0xffffffffL));
+
+		byte[] data = new byte[size];
+		Inflater inflater = borrowInflater();
+		try {
+			inflater.setInput(b, off + h, len - h - TRAILER_SIZE);
+			int n = 0;
+			while (n < size && !inflater.finished()) {
+				int k = inflater.inflate(data, n, size - n);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += k;
+			}
+			if (n != size || !inflater.finished() && inflater.inflate(new byte[1]) != 0)
+				throw new IOException("Gzip member size mismatch");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt gzip member: " + e.getMessage());
+		} finally {
+			returnInflater(inflater);
+		}
+		CRC32 check = new CRC32();
+		check.update(data, 0, size);
+		if (check.getValue() != crc)
+			throw new IOException("Gzip member CRC mismatch");
+		return ByteBuffer.wrap(data);
+	}
+}
@@ -1,20 +1,60 @@
 package util;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+/**
+ * An HTTP reply, as stored in the data of an ARC record.
+ * 
+ * The reply is parsed in place, in steps: parsing only reads the status line;
+ * the header lines are indexed the first time a header or the body is asked
+ * for, and header values are decoded only when asked for. Header names are
+ * matched case-insensitively against the bytes of the reply. The body is a
+ * view of the reply, not a copy. Chunked transfer encoding and gzip or
+ * deflate content encoding are decoded on demand by getContent and getData.
+ * 
+ * The reply keeps a reference to the buffer it was parsed from, which must
+ * not be modified while the reply is in use. Header bytes are decoded as
+ * ISO-8859-1.
+ * 
+ */
 public class HttpReply {
 
-	private String version;
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final ByteBuffer buf;
+	private final int start, end;
+	private int versionEnd;
 	private int statusCode;
+	private int statusLineEnd; // without the line terminator
+	private int headersStart;
+
+	private String version;
 	private String statusLine;
-	private Map<String, List<String>> headers;
+
+	// Header i is name [4i, 4i+1), value [4i+2, 4i+3), built on demand
+	private int[] headerIndex;
+	private int headerCount;
+	private int bodyStart;
+
+	private ByteBuffer content;
 	private byte[] data;
 
-	public HttpReply() {
+	private HttpReply(ByteBuffer buf, int start, int end) {
+		this.buf = buf;
+		this.start = start;
+		this.end = end;
 	}
 
 	public String getVersion() {
+		if (version == null)
+			version = decode(start, versionEnd);
 		return version;
 	}
 
@@ -23,23 +63,460 @@ public class HttpReply {
 	}
 
 	public String getStatusLine() {
+		if (statusLine == null)
+			statusLine = decode(start, statusLineEnd);
 		return statusLine;
 	}
 
+	/**
+	 * Get the number of header lines (continuation lines count with the line
+	 * they continue).
+	 * 
+	 * @return
+	 */
+	public int getHeaderCount() {
+		indexHeaders();
+		return headerCount;
+	}
+
+	public String getHeaderName(int i) {
+		indexHeaders();
+		return decode(headerIndex[4 * i], headerIndex[4 * i + 1]);
+	}
+
+	public String getHeaderValue(int i) {
+		indexHeaders();
+		return decodeValue(headerIndex[4 * i + 2], headerIndex[4 * i + 3]);
+	}
+
+	/**
+	 * Get the values of all the headers with the given name (ignoring case),
+	 * in the order of the reply.
+	 * 
+	 * @param key
+	 * @return the values, or null if there is no such header
+	 */
 	public List<String> getHeaders(String key) {
-		return headers.get(key);
+		List<String> values = null;
+		for (int i = findHeader(key, 0); i >= 0; i = findHeader(key, i + 1)) {
+			if (values == null)
+				values = new ArrayList<String>(1);
+			values.add(getHeaderValue(i));
+		}
+		return values;
 	}
 
+	/**
+	 * Get the value of the first header with the given name (ignoring case).
+	 * 
+	 * @param key
+	 * @return the value, or null if there is no such header
+	 */
 	public String getHeader(String key) {
-		return getHeaders(key).get(0);
+		int i = findHeader(key, 0);
+		return i < 0 ? null : getHeaderValue(i);
 	}
 
-	public byte[] getData() {
+	public boolean hasHeader(String key) {
+		return findHeader(key, 0) >= 0;
+	}
+
+	/**
+	 * Get the body of the reply as transferred (before any transfer or
+	 * content decoding), without copying it. It ends at the Content-Length,
+	 * if there is one and the body is not chunked.
+	 * 
+	 * @return a read-only view of the body
+	 */
+	public ByteBuffer getBody() {
+		indexHeaders();
+		int bodyEnd = end;
+		if (!hasToken("Transfer-Encoding", "chunked")) {
+			long length = getContentLength();
+			if (length >= 0 && length < end - bodyStart)
+				bodyEnd = bodyStart + (int) length;
+		}
+		ByteBuffer body = buf.duplicate();
+		body.limit(bodyEnd).position(bodyStart);
+		return body.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get the Content-Length header.
+	 * 
+	 * @return the length, or -1 if there is no valid Content-Length
+	 */
+	public long getContentLength() {
+		int i = findHeader("Content-Length", 0);
+		if (i < 0)
+			return -1;
+		int s = headerIndex[4 * i + 2], e = headerIndex[4 * i + 3];
+		long length = 0;
+		for (int p = s; p < e; p++) {
+			int d = buf.get(p) - '0';
+			if (d < 0 || d > 9 || (length = length * 10 + d) > Integer.MAX_VALUE)
+				return -1;
+		}
+		return s < e ? length : -1;
+	}
+
+	/**
+	 * Get the body with transfer encoding (chunked) and content encoding
+	 * (gzip, deflate) removed. When there is nothing to decode, this is the
+	 * same view as getBody; otherwise it is decoded the first time and kept.
+	 * Unknown content encodings are left as they are.
+	 * 
+	 * @return a read-only buffer
+	 * @throws IOException
+	 *             if the compressed content is corrupt
+	 */
+	public ByteBuffer getContent() throws IOException {
+		if (content == null) {
+			ByteBuffer body = getBody();
+			if (hasToken("Transfer-Encoding", "chunked"))
+				body = dechunk(body);
+			if (hasToken("Content-Encoding", "gzip")
+					|| hasToken("Content-Encoding", "x-gzip"))
+				body = gunzip(body);
+			else if (hasToken("Content-Encoding", "deflate"))
+				body = inflateDeflate(body);
+			content = body.asReadOnlyBuffer();
+		}
+		return content.duplicate();
+	}
+
+	/**
+	 * Get a copy of the decoded body (see getContent).
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getData() throws IOException {
+		if (data == null) {
+			ByteBuffer c = getContent();
+			byte[] copy = new byte[c.remaining()];
+			c.get(copy);
+			data = copy;
+		}
 		return data;
 	}
 
-	public HttpReply parseHttpReply(byte[] rawData) {
-		return new HttpReply();
+	/**
+	 * Parse the reply held in buf, from position to limit. Only the status
+	 * line is read here.
+	 * 
+	 * @param buf
+	 * @return
+	 * @throws ParseException
+	 *             if the reply does not start with a valid status line
+	 */
+	public static HttpReply parseHttpReply(ByteBuffer buf)
+			throws ParseException {
+		HttpReply reply = new HttpReply(buf, buf.position(), buf.limit());
+		reply.parseStatusLine();
+		return reply;
+	}
+
+	public static HttpReply parseHttpReply(byte[] rawData)
+			throws ParseException {
+		return parseHttpReply(ByteBuffer.wrap(rawData));
+	}
+
+	/**
+	 * Parse the data of an ARC record, without copying it.
+	 * 
+	 * @param record
+	 * @return
+	 * @throws ParseException
+	 *             if the record has no data or it is not an HTTP reply
+	 */
+	public static HttpReply parseHttpReply(ArcRecord record)
+			throws ParseException {
+		ByteBuffer data = record.getDataBuffer();
+		if (data == null)
+			throw new ParseException("Record has no data", 0);
+		return parseHttpReply(data);
+	}
+
+	/**
+	 * Get the status code of the reply at the position of buf, reading only
+	 * its status line, which may be cut anywhere after the code.
+	 * 
+	 * @param buf
+	 * @return the status code, or 0 if buf does not start with a status line
+	 */
+	static int peekStatusCode(ByteBuffer buf) {
+		try {
+			return parseHttpReply(buf).getStatusCode();
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * "HTTP/x.y nnn reason", the reason being optional.
+	 */
+	private void parseStatusLine() throws ParseException {
+		int i = start;
+		if (end - start < 5 || buf.get(i) != 'H' || buf.get(i + 1) != 'T'
+				|| buf.get(i + 2) != 'T' || buf.get(i + 3) != 'P'
+				|| buf.get(i + 4) != '/')
+			throw new ParseException("Not an HTTP reply", 0);
+		while (i < end && buf.get(i) != ' ' && buf.get(i) != '\n')
+			i++;
+		versionEnd = i;
+		while (i < end && buf.get(i) == ' ')
+			i++;
+		int s = i;
+		while (i < end && i - s < 3 && isDigit(buf.get(i)))
+			statusCode = statusCode * 10 + buf.get(i++) - '0';
+		if (i - s != 3 || i < end && buf.get(i) != ' ' && buf.get(i) != '\r'
+				&& buf.get(i) != '\n')
+			throw new ParseException("Invalid status code", s - start);
+		while (i < end && buf.get(i) != '\n')
+			i++;
+		headersStart = Math.min(i + 1, end);
+		statusLineEnd = i > start && buf.get(i - 1) == '\r' ? i - 1 : i;
+	}
+
+	/**
+	 * Find where each header line is. Lines may end with CRLF or LF alone;
+	 * lines without a colon are skipped. If the reply ends before the empty
+	 * line, the body is empty.
+	 */
+	private void indexHeaders() {
+		if (headerIndex != null)
+			return;
+		int[] index = new int[4 * 16];
+		int count = 0;
+		int i = headersStart;
+		bodyStart = end;
+		while (i < end) {
+			int s = i;
+			while (i < end && buf.get(i) != '\n')
+				i++;
+			if (i == end)
+				break; // Incomplete line
+			int e = i > s && buf.get(i - 1) == '\r' ? i - 1 : i;
+			i++;
+			if (e == s) {
+				bodyStart = i;
+				break;
+			}
+			byte first = buf.get(s);
+			if ((first == ' ' || first == '\t') && count > 0) {
+				// Continuation of the previous value
+				index[4 * count - 1] = trimEnd(s, e);
+				continue;
+			}
+			int colon = s;
+			while (colon < e && buf.get(colon) != ':')
+				colon++;
+			if (colon == e)
+				continue;
+			if (4 * count == index.length) {
+				int[] grown = new int[index.length * 2];
+				System.arraycopy(index, 0, grown, 0, index.length);
+				index = grown;
+			}
+			int v = colon + 1;
+			while (v < e && (buf.get(v) == ' ' || buf.get(v) == '\t'))
+				v++;
+			index[4 * count] = s;
+			index[4 * count + 1] = trimEnd(s, colon);
+			index[4 * count + 2] = v;
+			index[4 * count + 3] = trimEnd(v, e);
+			count++;
+		}
+		headerCount = count;
+		headerIndex = index;
+	}
+
+	private int trimEnd(int s, int e) {
+		while (e > s && (buf.get(e - 1) == ' ' || buf.get(e - 1) == '\t'))
+			e--;
+		return e;
+	}
+
+	/**
+	 * Find the first header from the given one whose name is key, ignoring
+	 * case.
+	 * 
+	 * @return the header number, or -1
+	 */
+	private int findHeader(String key, int from) {
+		indexHeaders();
+		int n = key.length();
+		for (int i = from; i < headerCount; i++) {
+			int s = headerIndex[4 * i];
+			if (headerIndex[4 * i + 1] - s == n
+					&& equalsIgnoreCase(s, key, 0, n))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Does one of the headers named key have token in its comma-separated
+	 * value (ignoring case)?
+	 */
+	private boolean hasToken(String key, String token) {
+		int n = token.length();
+		for (int i = findHeader(key, 0); i >= 0; i = findHeader(key, i + 1)) {
+			int p = headerIndex[4 * i + 2], e = headerIndex[4 * i + 3];
+			while (p < e) {
+				while (p < e && (buf.get(p) == ' ' || buf.get(p) == '\t'
+						|| buf.get(p) == ','))
+					p++;
+				int s = p;
+				while (p < e && buf.get(p) != ',' && buf.get(p) != ';')
+					p++;
+				if (trimEnd(s, p) - s == n && equalsIgnoreCase(s, token, 0, n))
+					return true;
+				while (p < e && buf.get(p) != ',')
+					p++;
+			}
+		}
+		return false;
+	}
+
+	private boolean equalsIgnoreCase(int pos, String s, int from, int n) {
+		for (int j = 0; j < n; j++) {
+			int a = buf.get(pos + j) & 0xff, b = s.charAt(from + j);
+			if (a != b && toLower(a) != toLower(b))
+				return false;
+		}
+		return true;
+	}
+
+	private static int toLower(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private String decode(int s, int e) {
+		byte[] b = new byte[e - s];
+		for (int i = 0; i < b.length; i++)
+			b[i] = buf.get(s + i);
+		return new String(b, LATIN1);
+	}
+
+	/**
+	 * Decode a header value, replacing the line breaks of continuation lines
+	 * by one space.
+	 */
+	private String decodeValue(int s, int e) {
+		StringBuilder value = new StringBuilder(e - s);
+		for (int i = s; i < e; i++) {
+			byte b = buf.get(i);
+			if (b == '\r' || b == '\n') {
+				while (i + 1 < e && isSpace(buf.get(i + 1)))
+					i++;
+				value.append(' ');
+			} else
+				value.append((char) (b & 0xff));
+		}
+		return value.toString();
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	/**
+	 * Remove chunked transfer encoding. A truncated body gives the chunks
+	 * that are there; trailers are ignored.
+	 */
+	static ByteBuffer dechunk(ByteBuffer body) {
+		ByteBuffer out = ByteBuffer.allocate(body.remaining());
+		int p = body.position(), e = body.limit();
+		while (p < e) {
+			long size = 0;
+			int digits = 0;
+			for (; p < e; p++, digits++) {
+				int d = Character.digit(body.get(p), 16);
+				if (d < 0 || size > Integer.MAX_VALUE)
+					break;
+				size = size * 16 + d;
+			}
+			// Skip chunk extensions and the line terminator
+			while (p < e && body.get(p) != '\n')
+				p++;
+			p++;
+			if (digits == 0 || size == 0 || p >= e)
+				break;
+			int n = (int) Math.min(size, e - p);
+			ByteBuffer chunk = body.duplicate();
+			chunk.limit(p + n).position(p);
+			out.put(chunk);
+			p += n;
+			// CRLF after the chunk data
+			if (p < e && body.get(p) == '\r')
+				p++;
+			if (p < e && body.get(p) == '\n')
+				p++;
+		}
+		out.flip();
+		return out;
+	}
+
+	private static ByteBuffer gunzip(ByteBuffer body) throws IOException {
+		byte[] b = toArray(body);
+		int h = GzipMember.headerLength(b, 0, b.length);
+		if (h < 0)
+			throw new IOException("Truncated gzip content");
+		return inflate(b, h, b.length - h);
+	}
+
+	/**
+	 * "deflate" should be zlib data, but some servers send raw deflate: check
+	 * for a zlib header (deflate method, and a valid check value).
+	 */
+	private static ByteBuffer inflateDeflate(ByteBuffer body)
+			throws IOException {
+		byte[] b = toArray(body);
+		boolean zlib = b.length >= 2 && (b[0] & 0x0f) == 8
+				&& ((b[0] & 0xff) << 8 | (b[1] & 0xff)) % 31 == 0;
+		if (zlib && (b[1] & 0x20) != 0)
+			throw new IOException("Preset dictionary in deflate content");
+		// The adler32 trailer of zlib data is left to the inflater as input
+		return zlib ? inflate(b, 2, b.length - 2) : inflate(b, 0, b.length);
+	}
+
+	private static ByteBuffer inflate(byte[] b, int off, int len)
+			throws IOException {
+		byte[] out = new byte[Math.max(256, 4 * len)];
+		int n = 0;
+		Inflater inflater = GzipMember.borrowInflater();
+		try {
+			inflater.setInput(b, off, len);
+			while (!inflater.finished()) {
+				if (n == out.length) {
+					byte[] grown = new byte[2 * out.length];
+					System.arraycopy(out, 0, grown, 0, n);
+					out = grown;
+				}
+				int k = inflater.inflate(out, n, out.length - n);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break; // Truncated: keep what was inflated
+				n += k;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed content: "
+					+ e.getMessage());
+		} finally {
+			GzipMember.returnInflater(inflater);
+		}
+		return ByteBuffer.wrap(out, 0, n).slice();
+	}
+
+	private static byte[] toArray(ByteBuffer buf) {
+		byte[] b = new byte[buf.remaining()];
+		buf.duplicate().get(b);
+		return b;
 	}
 
 }
@@ -0,0 +1,64 @@
+package util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A whole file mapped read-only in memory, as a sequence of 1 GB segments so
+ * that files larger than 2 GB can be mapped too. Values are big-endian, as
+ * written by DataOutputStream.
+ * 
+ * All accessors are absolute, so an instance can be shared between threads.
+ * Longs (resp. ints, shorts) must be at offsets that are a multiple of 8
+ * (resp. 4, 2), so that they never span two segments. The file is closed as
+ * soon as it is mapped; the mapping lives until it is garbage collected.
+ * 
+ */
+final class MappedFile {
+
+	static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	private final ByteBuffer[] segments;
+	private final long size;
+
+	MappedFile(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			size = channel.size();
+			int n = (int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+			segments = new ByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				long start = (long) i << SEGMENT_BITS;
+				segments[i] = channel.map(MapMode.READ_ONLY, start, Math.min(
+						size - start, 1L << SEGMENT_BITS));
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	byte get(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+	}
+
+	short getShort(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getShort((int) (pos & SEGMENT_MASK));
+	}
+
+	int getInt(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getInt((int) (pos & SEGMENT_MASK));
+	}
+
+	long getLong(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getLong((int) (pos & SEGMENT_MASK));
+	}
+}
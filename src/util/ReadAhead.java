@@ -0,0 +1,286 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Read-ahead for sequential reads of a dump (see
+ * ArcRecordReader.setReadAhead).
+ * 
+ * The file is read by windows into two buffers: while the
+ * reads are served from one window, a background thread fills the other with
+ * the window that follows, so disk I/O overlaps with the work of the reader.
+ * Reads are copied out of the windows, so the buffers can be recycled.
+ * 
+ * Read-ahead starts after SEQUENTIAL_READS reads that each start where the
+ * previous one ended, and stops at the first read that does not; or it is
+ * always on, if the reads are declared sequential. Like the read-ahead of
+ * the system, it starts with windows of INITIAL_WINDOW_SIZE, which double
+ * up to the window size as long as the reads go on in order, so that short
+ * sequential runs do not read much ahead. Reads larger than the window size
+ * are not served from the windows.
+ * 
+ * A stall is a read that has to wait for a window to be filled: either the
+ * background thread is late (the scan is I/O bound), or the read-ahead
+ * starts over after a jump.
+ * 
+ */
+public class ReadAhead implements Closeable {
+
+	/** Number of sequential reads before reading ahead. */
+	public static final int SEQUENTIAL_READS = 4;
+	/** Size of the first windows read after a start. */
+	public static final int INITIAL_WINDOW_SIZE = 64 << 10;
+
+	private final FileChannel channel;
+	private final int windowSize;
+	private final boolean always;
+	private final ExecutorService filler;
+
+	private Window current, next; // next follows current in the file
+	private int span; // size of the next window to fill
+	private boolean active;
+	private long expected = -1; // offset following the last read
+	private int sequential; // number of consecutive sequential reads
+
+	private long reads, served, stalls, stallNanos, prefetched;
+
+	/** A window of the file, and the filling of its buffer. */
+	private static class Window {
+		final ByteBuffer buffer;
+		long start;
+		int size; // asked for
+		int length; // read (less than size at the end of the file)
+		Future<Integer> fill;
+
+		Window(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param channel
+	 * @param windowSize
+	 *            size of each of the two windows
+	 * @param always
+	 *            whether reads are known to be sequential
+	 */
+	ReadAhead(FileChannel channel, int windowSize, boolean always) {
+		this.channel = channel;
+		this.windowSize = windowSize;
+		this.always = always;
+		current = new Window(windowSize);
+		next = new Window(windowSize);
+		filler = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "read-ahead");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Read a range of the file from the windows, if the read-ahead is on.
+	 * 
+	 * @param offset
+	 * @param size
+	 * @return the bytes, or null if the range is to be read directly (read
+	 *         ahead off, range too large, or past the end of the file)
+	 * @throws IOException
+	 */
+	synchronized ByteBuffer read(long offset, int size) throws IOException {
+		reads++;
+		sequential = offset == expected ? sequential + 1 : 0;
+		expected = offset + size;
+		if (!always && sequential < SEQUENTIAL_READS) {
+			active = false; // the fills under way are awaited on restart
+			return null;
+		}
+		if (size > windowSize) {
+			start(offset + size);
+			return null;
+		}
+		if (!active || !contains(offset))
+			start(offset);
+		ByteBuffer data = ByteBuffer.allocate(size);
+		while (data.hasRemaining()) {
+			long pos = offset + data.position();
+			if (pos >= current.start + current.length) {
+				if (current.length < current.size)
+					return null; // end of file: let the caller fail
+				advance();
+				continue;
+			}
+			ByteBuffer window = current.buffer.duplicate();
+			window.position((int) (pos - current.start));
+			window.limit(window.position()
+					+ (int) Math.min(data.remaining(), current.start
+							+ current.length - pos));
+			data.put(window);
+		}
+		served++;
+		data.flip();
+		return data;
+	}
+
+	/** Is the offset in the current window, or the next one? */
+	private boolean contains(long offset) {
+		return offset >= current.start && offset < next.start + next.size;
+	}
+
+	/** Start reading ahead from an offset. */
+	private void start(long offset) throws IOException {
+		stop();
+		span = Math.min(INITIAL_WINDOW_SIZE, windowSize);
+		schedule(current, offset);
+		schedule(next, offset + current.size);
+		active = true;
+		await(current);
+	}
+
+	/** Stop reading ahead, once the fills under way are done. */
+	private void stop() {
+		for (Window w : new Window[] { current, next })
+			if (w.fill != null) {
+				try {
+					w.fill.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// the window is dropped anyway
+				}
+				w.fill = null;
+				w.length = 0;
+			}
+		active = false;
+	}
+
+	/** Move to the next window, and start filling the one after. */
+	private void advance() throws IOException {
+		Window done = current;
+		current = next;
+		next = done;
+		await(current);
+		span = (int) Math.min(2L * span, windowSize);
+		schedule(next, current.start + current.size);
+	}
+
+	private void schedule(final Window w, final long start) {
+		w.start = start;
+		w.size = span;
+		w.length = 0;
+		w.fill = filler.submit(() -> fill(w));
+	}
+
+	/** Fill a window (on the background thread). */
+	private int fill(Window w) throws IOException {
+		ByteBuffer buf = w.buffer.duplicate();
+		buf.clear().limit(w.size);
+		long pos = w.start;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0)
+				break;
+			pos += n;
+		}
+		return buf.position();
+	}
+
+	/** Wait for a window to be filled. */
+	private void await(Window w) throws IOException {
+		if (w.fill == null)
+			return;
+		try {
+			if (!w.fill.isDone()) {
+				long begin = System.nanoTime();
+				w.length = w.fill.get();
+				stalls++;
+				stallNanos += System.nanoTime() - begin;
+			} else
+				w.length = w.fill.get();
+			prefetched += w.length;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			active = false;
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		} finally {
+			w.fill = null;
+		}
+	}
+
+	/**
+	 * Get the number of reads asked for.
+	 * 
+	 * @return
+	 */
+	public synchronized long getReads() {
+		return reads;
+	}
+
+	/**
+	 * Get the number of reads served from the windows.
+	 * 
+	 * @return
+	 */
+	public synchronized long getServedReads() {
+		return served;
+	}
+
+	/**
+	 * Get the number of times a read waited for a window.
+	 * 
+	 * @return
+	 */
+	public synchronized long getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * Get the total time reads waited for windows.
+	 * 
+	 * @return in nanoseconds
+	 */
+	public synchronized long getStallNanos() {
+		return stallNanos;
+	}
+
+	/**
+	 * Get the number of bytes read into the windows.
+	 * 
+	 * @return
+	 */
+	public synchronized long getPrefetchedBytes() {
+		return prefetched;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d reads, %d served by read-ahead, %d stalls "
+				+ "(%.1f ms), %d bytes read ahead", reads, served, stalls,
+				stallNanos / 1e6, prefetched);
+	}
+
+	/**
+	 * Stop the background thread.
+	 */
+	@Override
+	public synchronized void close() {
+		stop();
+		filler.shutdown();
+	}
+}
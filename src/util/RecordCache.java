@@ -0,0 +1,279 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of byte buffers (decoded records, or blocks of a dump) bounded by
+ * their total size in bytes, keyed by a long (record id, block offset...).
+ * 
+ * The policy is a segmented LRU: new entries go to a probation segment, and
+ * move to a protected segment (PROTECTED_RATIO of the capacity) when they are
+ * hit again. Eviction takes the least recently used entries of probation
+ * first, so a scan over many records that are read once does not flush the
+ * records that are read often.
+ * 
+ * The cache is split into stripes by key, each with its own lock and an equal
+ * share of the capacity, so that threads rarely wait for each other. Buffers
+ * are stored read-only and handed out as duplicates, so they can be shared.
+ * 
+ */
+public class RecordCache {
+
+	public static final int DEFAULT_STRIPES = 16;
+	public static final double PROTECTED_RATIO = 0.8;
+
+	private final Stripe[] stripes;
+	private final long capacity;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity
+	 *            maximum total size of the cached buffers, in bytes
+	 */
+	public RecordCache(long capacity) {
+		this(capacity, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity
+	 *            maximum total size of the cached buffers, in bytes
+	 * @param stripes
+	 *            number of independently locked parts (rounded up to a power
+	 *            of 2); a buffer larger than capacity / stripes is not cached
+	 */
+	public RecordCache(long capacity, int stripes) {
+		if (capacity < 0 || stripes < 1)
+			throw new IllegalArgumentException("capacity=" + capacity
+					+ ", stripes=" + stripes);
+		int n = Integer.highestOneBit(stripes);
+		if (n < stripes)
+			n <<= 1;
+		this.capacity = capacity;
+		this.stripes = new Stripe[n];
+		for (int i = 0; i < n; i++)
+			this.stripes[i] = new Stripe(capacity / n);
+	}
+
+	private Stripe stripe(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return stripes[(int) (h >>> 32) & (stripes.length - 1)];
+	}
+
+	/**
+	 * Get a cached buffer.
+	 * 
+	 * @param key
+	 * @return a read-only duplicate of the buffer, or null if it is not cached
+	 */
+	public ByteBuffer get(long key) {
+		ByteBuffer value = stripe(key).get(key);
+		if (value == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return value.duplicate();
+	}
+
+	/**
+	 * Cache a buffer (its content from position to limit, which must not be
+	 * modified afterwards), replacing any buffer cached with the same key.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void put(long key, ByteBuffer value) {
+		stripe(key).put(key, value.asReadOnlyBuffer());
+	}
+
+	/**
+	 * Remove a buffer from the cache, if it is there.
+	 * 
+	 * @param key
+	 */
+	public void remove(long key) {
+		stripe(key).remove(key);
+	}
+
+	public void clear() {
+		for (Stripe s : stripes)
+			s.clear();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the total size of the cached buffers, in bytes.
+	 * 
+	 * @return
+	 */
+	public long getSize() {
+		long size = 0;
+		for (Stripe s : stripes)
+			size += s.size();
+		return size;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Get the ratio of hits to lookups, 0 if there was no lookup.
+	 * 
+	 * @return
+	 */
+	public double getHitRate() {
+		long h = hits.sum(), total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"size=%d/%d hits=%d misses=%d evictions=%d hitRate=%.3f",
+				getSize(), capacity, getHits(), getMisses(), getEvictions(),
+				getHitRate());
+	}
+
+	/**
+	 * One stripe: two LRU lists (LinkedHashMap in access order), each
+	 * iterating from least to most recently used.
+	 */
+	private class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final long capacity;
+		private final long protectedCapacity;
+		private final LinkedHashMap<Long, ByteBuffer> probation = new LinkedHashMap<Long, ByteBuffer>(
+				16, 0.75f, true);
+		private final LinkedHashMap<Long, ByteBuffer> protectedSegment = new LinkedHashMap<Long, ByteBuffer>(
+				16, 0.75f, true);
+		private long probationSize, protectedSize;
+
+		Stripe(long capacity) {
+			this.capacity = capacity;
+			this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+		}
+
+		ByteBuffer get(long key) {
+			lock.lock();
+			try {
+				ByteBuffer value = protectedSegment.get(key);
+				if (value != null)
+					return value;
+				value = probation.remove(key);
+				if (value == null)
+					return null;
+				// Second hit: promote, demoting the LRU protected entries
+				probationSize -= value.remaining();
+				protectedSegment.put(key, value);
+				protectedSize += value.remaining();
+				Iterator<Map.Entry<Long, ByteBuffer>> it = protectedSegment
+						.entrySet().iterator();
+				while (protectedSize > protectedCapacity) {
+					Map.Entry<Long, ByteBuffer> e = it.next();
+					if (e.getKey() == key)
+						break;
+					it.remove();
+					protectedSize -= e.getValue().remaining();
+					probation.put(e.getKey(), e.getValue());
+					probationSize += e.getValue().remaining();
+				}
+				return value;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void put(long key, ByteBuffer value) {
+			int weight = value.remaining();
+			lock.lock();
+			try {
+				removeLocked(key);
+				if (weight > capacity)
+					return;
+				probation.put(key, value);
+				probationSize += weight;
+				evict();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void evict() {
+			Iterator<Map.Entry<Long, ByteBuffer>> it = probation.entrySet()
+					.iterator();
+			while (probationSize + protectedSize > capacity && it.hasNext()) {
+				probationSize -= it.next().getValue().remaining();
+				it.remove();
+				evictions.increment();
+			}
+			it = protectedSegment.entrySet().iterator();
+			while (probationSize + protectedSize > capacity && it.hasNext()) {
+				protectedSize -= it.next().getValue().remaining();
+				it.remove();
+				evictions.increment();
+			}
+		}
+
+		void remove(long key) {
+			lock.lock();
+			try {
+				removeLocked(key);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void removeLocked(long key) {
+			ByteBuffer old = probation.remove(key);
+			if (old != null)
+				probationSize -= old.remaining();
+			old = protectedSegment.remove(key);
+			if (old != null)
+				protectedSize -= old.remaining();
+		}
+
+		void clear() {
+			lock.lock();
+			try {
+				probation.clear();
+				protectedSegment.clear();
+				probationSize = protectedSize = 0;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long size() {
+			lock.lock();
+			try {
+				return probationSize + protectedSize;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
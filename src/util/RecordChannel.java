@@ -0,0 +1,324 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sequential access to the bytes of one record (header line, data and
+ * trailing newline), for records too large to be held in memory. Obtained
+ * from ArcRecordReader.openRecord.
+ * 
+ * Bytes are read with positioned reads on the dump's channel, so any number
+ * of record channels can be open on the same reader. Records of compressed
+ * dumps are inflated on the fly. readHeader parses the header line and
+ * leaves the channel at the beginning of the data, whose length is then
+ * known from the header. Records of block dumps are copied from their
+ * decompressed blocks.
+ * 
+ */
+public class RecordChannel implements ReadableByteChannel {
+
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel file; // null for block dumps
+	private final BlockDump blocks; // block dumps only
+	private final long start, end;
+	private long filePos;
+	private final boolean compressed;
+	private ReadableByteChannel inflated; // compressed dumps only
+
+	private ByteBuffer pushback; // read ahead by readHeader
+	private long position;
+	private boolean open = true;
+
+	RecordChannel(FileChannel file, long offset, long size, boolean compressed)
+			throws IOException {
+		this.file = file;
+		this.blocks = null;
+		this.start = offset;
+		this.end = offset + size;
+		this.filePos = offset;
+		this.compressed = compressed;
+		if (compressed) {
+			InputStream raw = Channels.newInputStream(new ReadableByteChannel() {
+				@Override
+				public int read(ByteBuffer dst) throws IOException {
+					return readStored(dst);
+				}
+
+				@Override
+				public boolean isOpen() {
+					return open;
+				}
+
+				@Override
+				public void close() {
+				}
+			});
+			inflated = Channels.newChannel(new GZIPInputStream(raw,
+					COPY_BUFFER_SIZE));
+		}
+	}
+
+	RecordChannel(BlockDump blocks, long offset, long size) {
+		this.file = null;
+		this.blocks = blocks;
+		this.start = offset;
+		this.end = offset + size;
+		this.filePos = offset;
+		this.compressed = false;
+	}
+
+	/**
+	 * Get the size of the record.
+	 * 
+	 * @return the size in bytes, or -1 for a record of a compressed dump (its
+	 *         stored size is getStoredSize)
+	 */
+	public long size() {
+		return compressed ? -1 : end - start;
+	}
+
+	/**
+	 * Get the size of the record as stored in the dump (compressed or not;
+	 * uncompressed for block dumps, whose blocks hold several records).
+	 * 
+	 * @return
+	 */
+	public long getStoredSize() {
+		return end - start;
+	}
+
+	/**
+	 * Get the number of bytes of the record read so far.
+	 * 
+	 * @return
+	 */
+	public long position() {
+		return position;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		int n;
+		if (pushback != null && pushback.hasRemaining()) {
+			n = Math.min(dst.remaining(), pushback.remaining());
+			ByteBuffer part = pushback.duplicate();
+			part.limit(part.position() + n);
+			dst.put(part);
+			pushback.position(pushback.position() + n);
+		} else if (compressed)
+			n = inflated.read(dst);
+		else
+			n = readStored(dst);
+		if (n > 0)
+			position += n;
+		return n;
+	}
+
+	/**
+	 * Read the stored bytes of the record.
+	 */
+	private int readStored(ByteBuffer dst) throws IOException {
+		if (filePos >= end)
+			return -1;
+		ByteBuffer part = dst;
+		if (dst.remaining() > end - filePos) {
+			part = dst.duplicate();
+			part.limit(part.position() + (int) (end - filePos));
+		}
+		int n = blocks != null ? blocks.read(part, filePos) : file.read(part,
+				filePos);
+		if (n < 0)
+			throw new EOFException(String.format(
+					"Dump truncated: record at offset %d ends at %d", start,
+					filePos));
+		if (part != dst)
+			dst.position(part.position());
+		filePos += n;
+		return n;
+	}
+
+	/**
+	 * Parse the header line. Must be called before anything is read; the
+	 * channel is then at the beginning of the record data.
+	 * 
+	 * @return the header, with no data
+	 * @throws IOException
+	 *             if the header is malformed, or too long
+	 */
+	public ArcRecord readHeader() throws IOException {
+		if (position != 0)
+			throw new IllegalStateException("Header already read");
+		ByteBuffer buf = ByteBuffer
+				.allocate(ArcIndexBuilder.MAX_HEADER_LINE_SIZE + 1);
+		int eol = -1;
+		while (eol < 0 && buf.hasRemaining() && read(buf) >= 0)
+			eol = indexOf(buf, '\n');
+		if (eol < 0)
+			throw new IOException("No header line in record at offset "
+					+ start);
+		try {
+			ArcRecord header = ArcRecord.parseArcRecord(buf, 0, eol);
+			buf.limit(buf.position()).position(eol + 1);
+			pushback = buf;
+			position = eol + 1;
+			return header;
+		} catch (ParseException e) {
+			throw new IOException("Malformed record at offset " + start + ": "
+					+ e.getMessage());
+		}
+	}
+
+	private static int indexOf(ByteBuffer buf, char c) {
+		for (int i = 0; i < buf.position(); i++)
+			if (buf.get(i) == c)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Skip bytes of the record. Costs nothing unless the dump is compressed
+	 * (one gzip member per record), whose records are inflated up to there.
+	 * 
+	 * @param n
+	 * @return the number of bytes skipped, less than n at the end of the
+	 *         record
+	 * @throws IOException
+	 */
+	public long skip(long n) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		long skipped = 0;
+		if (pushback != null && pushback.hasRemaining()) {
+			int k = (int) Math.min(n, pushback.remaining());
+			pushback.position(pushback.position() + k);
+			position += k;
+			skipped += k;
+		}
+		if (!compressed) {
+			long k = Math.min(n - skipped, end - filePos);
+			filePos += k;
+			position += k;
+			return skipped + k;
+		}
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE,
+				Math.max(1, n - skipped)));
+		while (skipped < n) {
+			buf.clear().limit((int) Math.min(buf.capacity(), n - skipped));
+			int k = read(buf);
+			if (k < 0)
+				break;
+			skipped += k;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Copy the rest of the record to a channel. For uncompressed dumps, the
+	 * bytes are transferred by the file channel, which can avoid copying them
+	 * through the heap (e.g. to a socket or a file).
+	 * 
+	 * The target must be in blocking mode: the copy goes on until all the
+	 * bytes are written.
+	 * 
+	 * @param target
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		return transferTo(target, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Same as transferTo(target), for at most count bytes.
+	 * 
+	 * @param target
+	 * @param count
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel target, long count)
+			throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		if (target instanceof SelectableChannel
+				&& !((SelectableChannel) target).isBlocking())
+			throw new IllegalBlockingModeException();
+		long total = 0;
+		while (total < count && pushback != null && pushback.hasRemaining()) {
+			ByteBuffer part = pushback.duplicate();
+			part.limit(part.position()
+					+ (int) Math.min(part.remaining(), count - total));
+			int n = target.write(part);
+			pushback.position(part.position());
+			position += n;
+			total += n;
+		}
+		if (!compressed && blocks == null) {
+			while (total < count && filePos < end) {
+				long n = file.transferTo(filePos, Math.min(end - filePos, count
+						- total), target);
+				if (n <= 0) {
+					if (filePos >= file.size())
+						throw new EOFException(String.format(
+								"Dump truncated: record at offset %d ends at %d",
+								start, filePos));
+					throw new IOException("Transfer made no progress at offset "
+							+ filePos);
+				}
+				filePos += n;
+				position += n;
+				total += n;
+			}
+			return total;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+		while (total < count) {
+			buf.clear().limit((int) Math.min(buf.capacity(), count - total));
+			if (read(buf) < 0)
+				break;
+			buf.flip();
+			while (buf.hasRemaining())
+				total += target.write(buf);
+		}
+		return total;
+	}
+
+	/**
+	 * Get an input stream over the rest of the record. Closing it closes this
+	 * channel.
+	 * 
+	 * @return
+	 */
+	public InputStream asInputStream() {
+		return Channels.newInputStream(this);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Close this channel (not the dump).
+	 */
+	@Override
+	public void close() {
+		open = false;
+		pushback = null;
+	}
+}
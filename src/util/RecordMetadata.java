@@ -0,0 +1,431 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Per-record metadata of an ARC dump, kept in a sidecar file next to the
+ * index so that records can be selected without reading the dump. Built by
+ * ArcIndexBuilder (option -meta) in a file named after the index with the
+ * SUFFIX extension.
+ * 
+ * For each record (not counting the first one), the sidecar holds the content
+ * type (as a number, see getContentTypeId), the archive date (in seconds), the
+ * HTTP status of the reply (0 if the data is not an HTTP reply) and a 32-bit
+ * hash of the host of the URL. Each field is a fixed-width column, so a scan
+ * on one field reads only that field.
+ * 
+ * Layout (big-endian, each column starting at a multiple of 8):
+ * 
+ * <pre>
+ * magic (8) | number of records n (8) | dictionary position (8) | unused (8)
+ * content type ids (2 each, unsigned)
+ * HTTP status codes (2 each)
+ * archive dates, in seconds since the epoch (4 each, unsigned)
+ * host hashes (4 each)
+ * number of content types (4) | content types (UTF, see DataOutput)
+ * </pre>
+ * 
+ */
+public class RecordMetadata {
+
+	public static final String SUFFIX = ".meta";
+	/** "ARCMETA1" */
+	public static final long MAGIC = 0x4152434d45544131L;
+	static final int HEADER_SIZE = 32;
+	/** Content type ids are unsigned shorts. */
+	public static final int MAX_CONTENT_TYPES = 1 << 16;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final MappedFile file;
+	private final int size;
+	private final long typesPos, statusPos, datesPos, hostsPos;
+	private final String[] contentTypes;
+	private final Map<String, Integer> contentTypeIds = new HashMap<String, Integer>();
+
+	/**
+	 * Constructor. Maps the sidecar file in memory.
+	 * 
+	 * @param metaFile
+	 * @throws IOException
+	 */
+	public RecordMetadata(String metaFile) throws IOException {
+		file = new MappedFile(metaFile);
+		if (file.size() < HEADER_SIZE || file.getLong(0) != MAGIC)
+			throw new IOException("Not a record metadata file: " + metaFile);
+		size = (int) file.getLong(8);
+		typesPos = HEADER_SIZE;
+		statusPos = align(typesPos + 2L * size);
+		datesPos = align(statusPos + 2L * size);
+		hostsPos = align(datesPos + 4L * size);
+		long pos = file.getLong(16);
+		if (pos != align(hostsPos + 4L * size))
+			throw new IOException("Corrupt record metadata file: " + metaFile);
+		// The dictionary is small: read it once
+		contentTypes = new String[file.getInt(pos)];
+		pos += 4;
+		for (int i = 0; i < contentTypes.length; i++) {
+			// Length (2) and modified UTF-8 bytes, as read by readUTF
+			byte[] utf = new byte[2 + (((file.get(pos) & 0xff) << 8) | (file
+					.get(pos + 1) & 0xff))];
+			for (int j = 0; j < utf.length; j++)
+				utf[j] = file.get(pos + j);
+			contentTypes[i] = new DataInputStream(new ByteArrayInputStream(utf))
+					.readUTF();
+			contentTypeIds.put(contentTypes[i], i);
+			pos += utf.length;
+		}
+	}
+
+	private static long align(long pos) {
+		return (pos + 7) & ~7L;
+	}
+
+	/**
+	 * Get the number of records.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getContentTypeId(int id) {
+		check(id);
+		return file.getShort(typesPos + 2L * id) & 0xffff;
+	}
+
+	public String getContentType(int id) {
+		return contentTypes[getContentTypeId(id)];
+	}
+
+	/**
+	 * Get the id of a content type.
+	 * 
+	 * @param contentType
+	 * @return the id, or -1 if no record has this content type
+	 */
+	public int findContentType(String contentType) {
+		Integer typeId = contentTypeIds.get(contentType);
+		return typeId == null ? -1 : typeId;
+	}
+
+	/**
+	 * Get the number of distinct content types.
+	 * 
+	 * @return
+	 */
+	public int getContentTypeCount() {
+		return contentTypes.length;
+	}
+
+	/**
+	 * Get the archive date, in milliseconds since the epoch (truncated to the
+	 * second).
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public long getArchiveTime(int id) {
+		check(id);
+		return (file.getInt(datesPos + 4L * id) & 0xffffffffL) * 1000;
+	}
+
+	/**
+	 * Get the HTTP status of the record data.
+	 * 
+	 * @param id
+	 * @return the status code, or 0 if the data is not an HTTP reply
+	 */
+	public int getStatusCode(int id) {
+		check(id);
+		return file.getShort(statusPos + 2L * id);
+	}
+
+	/**
+	 * Get the hash of the host of the record URL (see hostHash).
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public int getHostHash(int id) {
+		check(id);
+		return file.getInt(hostsPos + 4L * id);
+	}
+
+	private void check(int id) {
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException("Invalid record id " + id);
+	}
+
+	/**
+	 * Records with the given content type.
+	 * 
+	 * @param contentType
+	 * @return
+	 */
+	public IntPredicate contentType(String contentType) {
+		final int typeId = findContentType(contentType);
+		return id -> typeId >= 0 && getContentTypeId(id) == typeId;
+	}
+
+	/**
+	 * Records archived in [from, to), in milliseconds since the epoch.
+	 * 
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public IntPredicate archivedBetween(final long from, final long to) {
+		return id -> {
+			long time = getArchiveTime(id);
+			return time >= from && time < to;
+		};
+	}
+
+	/**
+	 * Records whose data is an HTTP reply with the given status.
+	 * 
+	 * @param statusCode
+	 * @return
+	 */
+	public IntPredicate statusCode(final int statusCode) {
+		return id -> getStatusCode(id) == statusCode;
+	}
+
+	/**
+	 * Records whose URL has the given host (ignoring case). Different hosts
+	 * may have the same hash, so the URL of the selected records should be
+	 * checked when that matters.
+	 * 
+	 * @param host
+	 * @return
+	 */
+	public IntPredicate host(String host) {
+		final int hash = hostHash(host);
+		return id -> getHostHash(id) == hash;
+	}
+
+	/**
+	 * Get the ids of the records that pass a filter, in increasing order.
+	 * Only the sidecar is read.
+	 * 
+	 * @param filter
+	 *            a test on record ids, usually built from the predicates of
+	 *            this class
+	 * @return
+	 */
+	public int[] select(IntPredicate filter) {
+		int[] ids = new int[1024];
+		int n = 0;
+		for (int id = 0; id < size; id++) {
+			if (!filter.test(id))
+				continue;
+			if (n == ids.length) {
+				int[] grown = new int[2 * n];
+				System.arraycopy(ids, 0, grown, 0, n);
+				ids = grown;
+			}
+			ids[n++] = id;
+		}
+		int[] result = new int[n];
+		System.arraycopy(ids, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * 32-bit hash of a host name (FNV-1a, ignoring case).
+	 * 
+	 * @param host
+	 * @return
+	 */
+	public static int hostHash(CharSequence host) {
+		byte[] b = host.toString().getBytes(LATIN1);
+		return hash(ByteBuffer.wrap(b), 0, b.length);
+	}
+
+	/**
+	 * Hash of the host of a URL.
+	 * 
+	 * @param url
+	 * @return
+	 */
+	public static int urlHostHash(CharSequence url) {
+		byte[] b = url.toString().getBytes(LATIN1);
+		return urlHostHash(ByteBuffer.wrap(b), 0, b.length);
+	}
+
+	/**
+	 * Hash of the host of the URL held in buf[start, end): what follows
+	 * "scheme://" and any "user@", up to the port, path, query or fragment.
+	 */
+	static int urlHostHash(ByteBuffer buf, int start, int end) {
+		int s = start;
+		for (int i = start; i + 2 < end; i++) {
+			byte b = buf.get(i);
+			if (b == '/' || b == '?' || b == '#')
+				break;
+			if (b == ':' && buf.get(i + 1) == '/' && buf.get(i + 2) == '/') {
+				s = i + 3;
+				break;
+			}
+		}
+		int e = s;
+		for (int i = s; i < end; i++) {
+			byte b = buf.get(i);
+			if (b == '/' || b == '?' || b == '#')
+				break;
+			if (b == '@')
+				s = i + 1;
+			e = i + 1;
+		}
+		for (int i = s; i < e; i++)
+			if (buf.get(i) == ':') {
+				e = i;
+				break;
+			}
+		return hash(buf, s, e);
+	}
+
+	private static int hash(ByteBuffer buf, int start, int end) {
+		int h = 0x811c9dc5;
+		for (int i = start; i < end; i++) {
+			int c = buf.get(i) & 0xff;
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			h ^= c;
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	/**
+	 * Writes a sidecar file, one record at a time. Each column goes to a
+	 * temporary file next to the sidecar, and the columns are concatenated
+	 * when the writer is closed.
+	 */
+	public static class Writer {
+		private final File metaFile;
+		private final File[] columnFiles = new File[4];
+		private final DataOutputStream[] columns = new DataOutputStream[4];
+		private final List<String> contentTypes = new ArrayList<String>();
+		private final Map<String, Integer> contentTypeIds = new HashMap<String, Integer>();
+		private long count;
+
+		public Writer(String metaFile) throws IOException {
+			this.metaFile = new File(metaFile);
+			File dir = this.metaFile.getAbsoluteFile().getParentFile();
+			try {
+				for (int i = 0; i < columns.length; i++) {
+					columnFiles[i] = File.createTempFile(this.metaFile
+							.getName(), ".col" + i, dir);
+					columns[i] = new DataOutputStream(new BufferedOutputStream(
+							new FileOutputStream(columnFiles[i]), 1 << 16));
+				}
+			} catch (IOException e) {
+				discard();
+				throw e;
+			}
+		}
+
+		/**
+		 * Add the metadata of the next record.
+		 * 
+		 * @param contentType
+		 * @param archiveTime
+		 *            in milliseconds since the epoch
+		 * @param statusCode
+		 *            HTTP status, or 0
+		 * @param hostHash
+		 *            see urlHostHash
+		 * @throws IOException
+		 *             if there are too many different content types
+		 */
+		public void add(String contentType, long archiveTime, int statusCode,
+				int hostHash) throws IOException {
+			Integer typeId = contentTypeIds.get(contentType);
+			if (typeId == null) {
+				if (contentTypes.size() == MAX_CONTENT_TYPES)
+					throw new IOException("Too many content types");
+				typeId = contentTypes.size();
+				contentTypes.add(contentType);
+				contentTypeIds.put(contentType, typeId);
+			}
+			columns[0].writeShort(typeId);
+			columns[1].writeShort(statusCode);
+			columns[2].writeInt((int) Math.max(0, Math.min(0xffffffffL,
+					archiveTime / 1000)));
+			columns[3].writeInt(hostHash);
+			count++;
+		}
+
+		public void close() throws IOException {
+			for (DataOutputStream column : columns)
+				column.close();
+			long[] widths = { 2, 2, 4, 4 };
+			long dictionaryPos = HEADER_SIZE;
+			for (long width : widths)
+				dictionaryPos = align(dictionaryPos + width * count);
+			FileOutputStream out = new FileOutputStream(metaFile);
+			try {
+				DataOutputStream header = new DataOutputStream(out);
+				header.writeLong(MAGIC);
+				header.writeLong(count);
+				header.writeLong(dictionaryPos);
+				header.writeLong(0);
+				header.flush();
+				FileChannel target = out.getChannel();
+				for (int i = 0; i < columns.length; i++) {
+					FileInputStream in = new FileInputStream(columnFiles[i]);
+					try {
+						FileChannel source = in.getChannel();
+						long pos = 0, n = source.size();
+						while (pos < n)
+							pos += source.transferTo(pos, n - pos, target);
+					} finally {
+						in.close();
+					}
+					long padding = align(target.position()) - target.position();
+					target.write(ByteBuffer.allocate((int) padding));
+				}
+				DataOutputStream dictionary = new DataOutputStream(
+						new BufferedOutputStream(out));
+				dictionary.writeInt(contentTypes.size());
+				for (String type : contentTypes)
+					dictionary.writeUTF(type);
+				dictionary.flush();
+			} finally {
+				out.close();
+				discard();
+			}
+		}
+
+		private void discard() {
+			for (int i = 0; i < columns.length; i++) {
+				try {
+					if (columns[i] != null)
+						columns[i].close();
+				} catch (IOException e) {
+					// Deleted anyway
+				}
+				if (columnFiles[i] != null)
+					columnFiles[i].delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,634 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small HTTP/1.1 server over an ARC dump, so that records can be fetched by
+ * id or URL from other programs on the machine. It only binds to the loopback
+ * interface.
+ * 
+ * GET /record/<id> returns the raw record (ARC header line and archived HTTP
+ * reply, as ArcRecordReader.getRecord), GET /record?url=<url> the record of a
+ * URL (the dump needs a URL index), and GET /metrics the counters of the
+ * server as text. Single byte ranges (Range: bytes=a-b) are honoured.
+ * 
+ * Each connection is served by its own thread, blocking: virtual threads when
+ * the JVM has them (Java 21 and later), a cached pool of platform threads
+ * otherwise. Records of uncompressed dumps are sent with FileChannel.transferTo
+ * (sendfile), without being copied through the heap.
+ * 
+ */
+public class RecordServer implements Closeable {
+
+	public static final int DEFAULT_PORT = 8480;
+	static final int MAX_REQUEST_SIZE = 8192;
+	static final int IDLE_TIMEOUT = 30000; // ms, between keep-alive requests
+
+	private final ArcRecordReader reader;
+	private final ServerSocketChannel server;
+	private final ExecutorService executor;
+	private final boolean virtual;
+	private final Thread acceptor;
+	private final Metrics metrics = new Metrics();
+	private volatile boolean running = true;
+
+	/**
+	 * Start serving the records of a dump.
+	 * 
+	 * @param reader
+	 * @param port
+	 *            0 for any free port (see getPort)
+	 * @throws IOException
+	 */
+	public RecordServer(ArcRecordReader reader, int port) throws IOException {
+		this.reader = reader;
+		server = ServerSocketChannel.open();
+		try {
+			server.socket().setReuseAddress(true);
+			server.socket().bind(
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+					1024);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		ExecutorService virtualExecutor = newVirtualThreadExecutor();
+		virtual = virtualExecutor != null;
+		executor = virtual ? virtualExecutor : Executors
+				.newCachedThreadPool(r -> {
+					Thread t = new Thread(r, "record-server");
+					t.setDaemon(true);
+					return t;
+				});
+		acceptor = new Thread(this::accept, "record-server-acceptor");
+		acceptor.start();
+	}
+
+	/**
+	 * Get an executor starting a virtual thread per task, through reflection
+	 * since the code is compiled for older JVMs.
+	 * 
+	 * @return the executor, or null if the JVM has no virtual threads
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Tell whether connections are served by virtual threads.
+	 * 
+	 * @return
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stop accepting connections and wait a little for the requests being
+	 * served. Does not close the reader.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		server.close();
+		try {
+			acceptor.join();
+			executor.shutdown();
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+	}
+
+	private void accept() {
+		while (running) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				if (running)
+					System.err.println("Accept failed: " + e);
+				continue;
+			}
+			try {
+				executor.execute(() -> serve(channel));
+			} catch (RejectedExecutionException e) {
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	/**
+	 * Serve the requests of a connection until the client closes it, asks to,
+	 * or stays idle for IDLE_TIMEOUT.
+	 * 
+	 * @param channel
+	 */
+	private void serve(SocketChannel channel) {
+		metrics.connections.incrementAndGet();
+		try {
+			Socket socket = channel.socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			// reads go through the socket stream, which honours the timeout
+			InputStream in = socket.getInputStream();
+			byte[] buf = new byte[MAX_REQUEST_SIZE];
+			int fill = 0;
+			boolean keepAlive = true;
+			while (keepAlive && running) {
+				int end;
+				while ((end = headerEnd(buf, fill)) < 0) {
+					if (fill == buf.length) {
+						sendError(channel, 431, "Request header too large",
+								false, false);
+						return;
+					}
+					int n = in.read(buf, fill, buf.length - fill);
+					if (n < 0)
+						return;
+					fill += n;
+				}
+				long start = System.nanoTime();
+				int inFlight = metrics.inFlight.incrementAndGet();
+				metrics.updateMaxInFlight(inFlight);
+				try {
+					keepAlive = handle(channel,
+							new String(buf, 0, end, StandardCharsets.ISO_8859_1));
+				} finally {
+					metrics.inFlight.decrementAndGet();
+					metrics.addLatency(System.nanoTime() - start);
+				}
+				// keep what the client pipelined after this request
+				System.arraycopy(buf, end, buf, 0, fill - end);
+				fill -= end;
+			}
+		} catch (SocketTimeoutException e) {
+			// idle keep-alive connection
+		} catch (IOException e) {
+			// client gone
+		} finally {
+			closeQuietly(channel);
+			metrics.connections.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Find the end of the request header (after the empty line).
+	 * 
+	 * @param buf
+	 * @param fill
+	 * @return the offset after the header, or -1 if it is incomplete
+	 */
+	static int headerEnd(byte[] buf, int fill) {
+		for (int i = 3; i < fill; i++)
+			if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n'
+					&& buf[i - 3] == '\r')
+				return i + 1;
+		return -1;
+	}
+
+	/**
+	 * Answer one request.
+	 * 
+	 * @param channel
+	 * @param header
+	 *            request line and header fields
+	 * @return whether the connection is kept alive
+	 * @throws IOException
+	 */
+	private boolean handle(SocketChannel channel, String header)
+			throws IOException {
+		metrics.requests.increment();
+		String[] lines = header.split("\r\n");
+		String[] request = lines[0].split(" ");
+		if (request.length != 3 || !request[2].startsWith("HTTP/1.")) {
+			sendError(channel, 400, "Malformed request line", false, false);
+			return false;
+		}
+		String method = request[0], target = request[1];
+		boolean keepAlive = !request[2].equals("HTTP/1.0");
+		String range = null;
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon < 0)
+				continue;
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Connection"))
+				keepAlive = value.equalsIgnoreCase("keep-alive")
+						|| keepAlive && !value.equalsIgnoreCase("close");
+			else if (name.equalsIgnoreCase("Range"))
+				range = value;
+			else if (name.equalsIgnoreCase("Content-Length")
+					|| name.equalsIgnoreCase("Transfer-Encoding")) {
+				// no request body is expected; do not try to skip it
+				sendError(channel, 400, "Request bodies are not supported",
+						false, false);
+				return false;
+			}
+		}
+		boolean head = method.equals("HEAD");
+		if (!head && !method.equals("GET")) {
+			sendError(channel, 405, "Only GET and HEAD are supported", false,
+					keepAlive);
+			return keepAlive;
+		}
+
+		String path = target, query = null;
+		int q = target.indexOf('?');
+		if (q >= 0) {
+			path = target.substring(0, q);
+			query = target.substring(q + 1);
+		}
+		if (path.equals("/metrics")) {
+			byte[] body = metrics.toString().getBytes(StandardCharsets.UTF_8);
+			writeFully(channel, responseHeader(200, "OK",
+					"text/plain; charset=utf-8", body.length, null, keepAlive));
+			if (!head)
+				writeFully(channel, ByteBuffer.wrap(body));
+			metrics.countStatus(200);
+			metrics.bytesSent.add(body.length);
+			return keepAlive;
+		}
+
+		int id;
+		if (path.startsWith("/record/")) {
+			try {
+				id = Integer.parseInt(path.substring("/record/".length()));
+			} catch (NumberFormatException e) {
+				sendError(channel, 400, "Malformed record id", head, keepAlive);
+				return keepAlive;
+			}
+		} else if (path.equals("/record") && query != null
+				&& query.startsWith("url=")) {
+			String url = decode(query.substring("url=".length()));
+			try {
+				id = url == null ? -1 : reader.getRecordId(url);
+			} catch (IOException e) {
+				sendError(channel, 501, e.getMessage(), head, keepAlive);
+				return keepAlive;
+			}
+		} else {
+			sendError(channel, 404, "Unknown path", head, keepAlive);
+			return keepAlive;
+		}
+		if (id < 0 || id >= reader.getNumRecords()) {
+			sendError(channel, 404, "No such record", head, keepAlive);
+			return keepAlive;
+		}
+		return sendRecord(channel, id, range, head, keepAlive);
+	}
+
+	private boolean sendRecord(SocketChannel channel, int id, String range,
+			boolean head, boolean keepAlive) throws IOException {
+		long size;
+		ByteBuffer inflated = null;
+		RecordChannel record = reader.openRecord(id);
+		try {
+			size = record.size();
+		} finally {
+			record.close();
+		}
+		if (size < 0) {
+			// compressed dump: the size is only known once inflated
+			inflated = reader.getRecord(id);
+			size = inflated.remaining();
+		}
+
+		long from = 0, to = size - 1;
+		int status = 200;
+		if (range != null) {
+			long[] r = parseRange(range, size);
+			if (r == null) {
+				// not a single byte range: ignored, as RFC 7233 allows
+			} else if (r.length == 0) {
+				writeFully(channel, responseHeader(416, "Range Not Satisfiable",
+						null, 0, "bytes */" + size, keepAlive));
+				metrics.countStatus(416);
+				return keepAlive;
+			} else {
+				from = r[0];
+				to = r[1];
+				status = 206;
+			}
+		}
+		long length = to - from + 1;
+		writeFully(channel, responseHeader(status, status == 206 ? "Partial Content"
+				: "OK", "application/octet-stream", length,
+				status == 206 ? String.format("bytes %d-%d/%d", from, to, size)
+						: null, keepAlive));
+		metrics.countStatus(status);
+		if (head)
+			return keepAlive;
+		long sent;
+		if (inflated != null) {
+			ByteBuffer part = inflated.duplicate(); // may be cached
+			part.position(part.position() + (int) from);
+			part.limit(part.position() + (int) length);
+			sent = writeFully(channel, part);
+		} else
+			sent = reader.transferRecord(id, from, length, channel);
+		metrics.bytesSent.add(sent);
+		if (sent != length)
+			throw new IOException(String.format(
+					"Record %d: sent %d bytes instead of %d", id, sent, length));
+		return keepAlive;
+	}
+
+	/**
+	 * Parse a Range header.
+	 * 
+	 * @param range
+	 * @param size
+	 *            size of the record
+	 * @return the first and last byte, an empty array if the range cannot be
+	 *         satisfied, or null if the header is not a single byte range
+	 */
+	static long[] parseRange(String range, long size) {
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+			return null;
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+			return null;
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long from, to;
+			if (first.isEmpty()) {
+				// suffix: the last n bytes
+				long n = Long.parseLong(last);
+				if (n <= 0 || size == 0)
+					return new long[0];
+				from = Math.max(0, size - n);
+				to = size - 1;
+			} else {
+				from = Long.parseLong(first);
+				to = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last),
+						size - 1);
+				if (from < 0 || !last.isEmpty() && Long.parseLong(last) < from)
+					return null;
+				if (from >= size)
+					return new long[0];
+			}
+			return new long[] { from, to };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static ByteBuffer responseHeader(int status, String reason,
+			String contentType, long length, String contentRange,
+			boolean keepAlive) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append(' ').append(reason)
+				.append("\r\n");
+		if (contentType != null)
+			sb.append("Content-Type: ").append(contentType).append("\r\n");
+		sb.append("Content-Length: ").append(length).append("\r\n");
+		sb.append("Accept-Ranges: bytes\r\n");
+		if (contentRange != null)
+			sb.append("Content-Range: ").append(contentRange).append("\r\n");
+		sb.append(keepAlive ? "Connection: keep-alive\r\n"
+				: "Connection: close\r\n");
+		sb.append("\r\n");
+		return ByteBuffer.wrap(sb.toString().getBytes(
+				StandardCharsets.ISO_8859_1));
+	}
+
+	private void sendError(SocketChannel channel, int status, String message,
+			boolean head, boolean keepAlive) throws IOException {
+		String reason;
+		switch (status) {
+		case 400:
+			reason = "Bad Request";
+			break;
+		case 404:
+			reason = "Not Found";
+			break;
+		case 405:
+			reason = "Method Not Allowed";
+			break;
+		case 431:
+			reason = "Request Header Fields Too Large";
+			break;
+		default:
+			reason = "Not Implemented";
+		}
+		byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		writeFully(channel, responseHeader(status, reason,
+				"text/plain; charset=utf-8", body.length, null, keepAlive));
+		if (!head)
+			writeFully(channel, ByteBuffer.wrap(body));
+		metrics.countStatus(status);
+	}
+
+	private static long writeFully(SocketChannel channel, ByteBuffer buf)
+			throws IOException {
+		long n = 0;
+		while (buf.hasRemaining())
+			n += channel.write(buf);
+		return n;
+	}
+
+	private static void closeQuietly(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Counters of a server, updated concurrently by the connection threads.
+	 * Latencies go from the end of the request header to the last byte of the
+	 * response, in power-of-two buckets of microseconds, so percentiles are
+	 * upper bounds within a factor of two.
+	 * 
+	 */
+	public static class Metrics {
+		private static final int BUCKETS = 40;
+
+		private final AtomicInteger connections = new AtomicInteger();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger maxInFlight = new AtomicInteger();
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder bytesSent = new LongAdder();
+		private final LongAdder totalLatency = new LongAdder(); // ns
+		private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+		private final AtomicLongArray statuses = new AtomicLongArray(6);
+
+		Metrics() {
+		}
+
+		void updateMaxInFlight(int n) {
+			int max;
+			while (n > (max = maxInFlight.get())
+					&& !maxInFlight.compareAndSet(max, n))
+				;
+		}
+
+		void addLatency(long nanos) {
+			totalLatency.add(nanos);
+			long micros = Math.max(1, nanos / 1000);
+			int bucket = 64 - Long.numberOfLeadingZeros(micros - 1);
+			latencies.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+
+		void countStatus(int status) {
+			statuses.incrementAndGet(Math.min(status / 100, 5));
+		}
+
+		public int getConnections() {
+			return connections.get();
+		}
+
+		public int getMaxInFlight() {
+			return maxInFlight.get();
+		}
+
+		public long getRequests() {
+			return requests.sum();
+		}
+
+		public long getBytesSent() {
+			return bytesSent.sum();
+		}
+
+		/**
+		 * Get the number of responses of a status class.
+		 * 
+		 * @param hundreds
+		 *            2 for 2xx, etc.
+		 * @return
+		 */
+		public long getResponses(int hundreds) {
+			return statuses.get(hundreds);
+		}
+
+		/**
+		 * Get a latency percentile.
+		 * 
+		 * @param p
+		 *            between 0 and 1
+		 * @return the upper bound of the bucket holding it, in microseconds
+		 */
+		public long getLatencyPercentile(double p) {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				total += latencies.get(i);
+			long rank = (long) Math.ceil(p * total), seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += latencies.get(i);
+				if (seen >= rank && seen > 0)
+					return 1L << i;
+			}
+			return 0;
+		}
+
+		public double getMeanLatency() {
+			long n = requests.sum();
+			return n == 0 ? 0 : totalLatency.sum() / 1000.0 / n;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("connections ").append(getConnections()).append('\n');
+			sb.append("requests ").append(getRequests()).append('\n');
+			sb.append("requests_in_flight ").append(inFlight.get()).append('\n');
+			sb.append("requests_in_flight_max ").append(getMaxInFlight())
+					.append('\n');
+			for (int i = 2; i <= 5; i++)
+				sb.append("responses_").append(i).append("xx ").append(
+						getResponses(i)).append('\n');
+			sb.append("bytes_sent ").append(getBytesSent()).append('\n');
+			sb.append(String.format("latency_mean_us %.1f\n", getMeanLatency()));
+			sb.append("latency_p50_us ").append(getLatencyPercentile(0.5))
+					.append('\n');
+			sb.append("latency_p90_us ").append(getLatencyPercentile(0.9))
+					.append('\n');
+			sb.append("latency_p99_us ").append(getLatencyPercentile(0.99))
+					.append('\n');
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Main program: serves a dump until interrupted, printing the metrics
+	 * every minute.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = DEFAULT_PORT;
+		boolean mapped = false;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-port") && i + 1 < args.length)
+				port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-mapped"))
+				mapped = true;
+			else
+				break;
+		}
+		if (args.length - i != 2) {
+			System.err.format("Usage: java %s [-port <port>] [-mapped] "
+					+ "<dump.arc> <dump.idx>\n", RecordServer.class.getName());
+			return;
+		}
+		ArcRecordReader reader = new ArcRecordReader(args[i], args[i + 1],
+				mapped);
+		RecordServer server = new RecordServer(reader, port);
+		System.err.format("Serving %d records of %s on http://localhost:%d/ "
+				+ "(%s threads)\n", reader.getNumRecords(), args[i], server
+				.getPort(), server.isVirtual() ? "virtual" : "platform");
+		while (true) {
+			Thread.sleep(60000);
+			System.err.print(server.getMetrics());
+		}
+	}
+}
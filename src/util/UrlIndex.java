@@ -0,0 +1,275 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Secondary index of an ARC dump, from URL to record id. Built by
+ * ArcIndexBuilder (option -urls) next to the main index, in a file named
+ * after it with the SUFFIX extension.
+ * 
+ * URLs are stored as 64-bit fingerprints in a sorted table, searched by
+ * interpolation (fingerprints are uniformly distributed). A Bloom filter in
+ * front of the table answers most lookups of unknown URLs without touching
+ * the table. Different URLs may share a fingerprint, so callers must check
+ * the URL of the records they get (see ArcRecordReader.getRecordId).
+ * 
+ * Layout (big-endian):
+ * 
+ * <pre>
+ * magic (8) | number of entries (8) | Bloom filter size in bits (8)
+ * number of Bloom hash functions (4) | unused (4)
+ * Bloom filter bits (8 per 64 bits)
+ * fingerprints, in increasing order (8 each)
+ * record ids, in the same order (4 each)
+ * </pre>
+ * 
+ */
+public class UrlIndex {
+
+	public static final String SUFFIX = ".url";
+	/** "ARCURLv1" */
+	public static final long MAGIC = 0x41524355524c7631L;
+	public static final int BLOOM_BITS_PER_ENTRY = 10;
+	public static final int BLOOM_HASHES = 7;
+	static final int HEADER_SIZE = 32;
+	private static final int INTERPOLATION_STEPS = 8;
+
+	private final MappedFile file;
+	private final long size;
+	private final long bloomBits;
+	private final int bloomHashes;
+	private final long fingerprintsPos;
+	private final long idsPos;
+
+	/**
+	 * Constructor. Maps the URL index file in memory.
+	 * 
+	 * @param urlFile
+	 * @throws IOException
+	 */
+	public UrlIndex(String urlFile) throws IOException {
+		file = new MappedFile(urlFile);
+		if (file.size() < HEADER_SIZE || file.getLong(0) != MAGIC)
+			throw new IOException("Not a URL index: " + urlFile);
+		size = file.getLong(8);
+		bloomBits = file.getLong(16);
+		bloomHashes = file.getInt(24);
+		fingerprintsPos = HEADER_SIZE + bloomBits / 8;
+		idsPos = fingerprintsPos + 8 * size;
+	}
+
+	/**
+	 * 64-bit fingerprint of a URL (FNV-1a followed by a bit mixer, so that
+	 * the values are spread evenly enough for interpolation search).
+	 * 
+	 * @param url
+	 * @return
+	 */
+	public static long fingerprint(CharSequence url) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0, n = url.length(); i < n; i++) {
+			h ^= url.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Same as fingerprint(CharSequence), for a URL held in buf[start, end) as
+	 * one byte per char (ISO-8859-1).
+	 * 
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public static long fingerprint(ByteBuffer buf, int start, int end) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = start; i < end; i++) {
+			h ^= buf.get(i) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Get the number of entries (one per record).
+	 * 
+	 * @return
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Check the Bloom filter. False means that no record has this
+	 * fingerprint; true means that one probably has.
+	 * 
+	 * @param fingerprint
+	 * @return
+	 */
+	public boolean mightContain(long fingerprint) {
+		if (size == 0)
+			return false;
+		long h1 = fingerprint & 0xffffffffL, h2 = fingerprint >>> 32;
+		for (int i = 0; i < bloomHashes; i++) {
+			long bit = (h1 + i * h2) % bloomBits;
+			if ((file.getLong(HEADER_SIZE + 8 * (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the first entry with the given fingerprint. The following ones
+	 * with the same fingerprint, if any, come right after it, in increasing
+	 * order of record id.
+	 * 
+	 * @param fingerprint
+	 * @return the position of the entry, or -1 if there is none
+	 */
+	public long find(long fingerprint) {
+		if (!mightContain(fingerprint))
+			return -1;
+		long lo = 0, hi = size - 1;
+		for (int step = 0; lo <= hi; step++) {
+			long low = getFingerprint(lo), high = getFingerprint(hi);
+			if (fingerprint <= low)
+				return fingerprint == low ? lo : -1;
+			if (fingerprint > high)
+				return -1;
+			// low < fingerprint <= high, so the answer is in (lo, hi]
+			long mid;
+			if (step < INTERPOLATION_STEPS)
+				mid = lo + (long) (((double) fingerprint - low)
+						/ ((double) high - low) * (hi - lo));
+			else
+				mid = (lo + hi) >>> 1;
+			lo++;
+			mid = Math.max(lo, Math.min(hi, mid));
+			if (getFingerprint(mid) < fingerprint)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return -1;
+	}
+
+	public long getFingerprint(long pos) {
+		return file.getLong(fingerprintsPos + 8 * pos);
+	}
+
+	public int getId(long pos) {
+		return file.getInt(idsPos + 4 * pos);
+	}
+
+	/**
+	 * Collects the (fingerprint, id) pairs of a dump and writes the URL index.
+	 * Records must be added in increasing order of id.
+	 */
+	public static class Builder {
+		private long[] fingerprints = new long[1024];
+		private int[] ids = new int[1024];
+		private int count;
+
+		public void add(long fingerprint, int id) {
+			if (count == ids.length) {
+				long[] f = new long[count * 2];
+				int[] i = new int[count * 2];
+				System.arraycopy(fingerprints, 0, f, 0, count);
+				System.arraycopy(ids, 0, i, 0, count);
+				fingerprints = f;
+				ids = i;
+			}
+			fingerprints[count] = fingerprint;
+			ids[count++] = id;
+		}
+
+		public void write(String urlFile) throws IOException {
+			sort(0, count - 1);
+			long bloomBits = Math.max(64, ((long) count
+					* BLOOM_BITS_PER_ENTRY + 63) & ~63L);
+			long[] bloom = new long[(int) (bloomBits / 64)];
+			for (int j = 0; j < count; j++) {
+				long h1 = fingerprints[j] & 0xffffffffL;
+				long h2 = fingerprints[j] >>> 32;
+				for (int i = 0; i < BLOOM_HASHES; i++) {
+					long bit = (h1 + i * h2) % bloomBits;
+					bloom[(int) (bit >>> 6)] |= 1L << bit;
+				}
+			}
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(urlFile),
+							1 << 16));
+			try {
+				out.writeLong(MAGIC);
+				out.writeLong(count);
+				out.writeLong(bloomBits);
+				out.writeInt(BLOOM_HASHES);
+				out.writeInt(0);
+				for (long word : bloom)
+					out.writeLong(word);
+				for (int j = 0; j < count; j++)
+					out.writeLong(fingerprints[j]);
+				for (int j = 0; j < count; j++)
+					out.writeInt(ids[j]);
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Quicksort on (fingerprint, id).
+		 */
+		private void sort(int lo, int hi) {
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				long pf = fingerprints[mid];
+				int pi = ids[mid];
+				int i = lo, j = hi;
+				while (i <= j) {
+					while (less(fingerprints[i], ids[i], pf, pi))
+						i++;
+					while (less(pf, pi, fingerprints[j], ids[j]))
+						j--;
+					if (i <= j)
+						swap(i++, j--);
+				}
+				// Recurse on the smaller part, loop on the larger one
+				if (j - lo < hi - i) {
+					sort(lo, j);
+					lo = i;
+				} else {
+					sort(i, hi);
+					hi = j;
+				}
+			}
+		}
+
+		private static boolean less(long f1, int i1, long f2, int i2) {
+			return f1 < f2 || f1 == f2 && i1 < i2;
+		}
+
+		private void swap(int i, int j) {
+			long f = fingerprints[i];
+			fingerprints[i] = fingerprints[j];
+			fingerprints[j] = f;
+			int id = ids[i];
+			ids[i] = ids[j];
+			ids[j] = id;
+		}
+	}
+}